@@ -0,0 +1,102 @@
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compares one deliverMsg call per message against deliverBatch over loopback RMI.
+// Every member is served by its own task, the same way Recipient drains its outbox.
+// Usage: java -cp jmh/target/benchmarks.jar BatchDeliveryBenchmark [messagesPerMember] [batchSize]
+public class BatchDeliveryBenchmark {
+    private static class CountingUser implements IUserChat {
+        private AtomicLong received = new AtomicLong();
+
+        public void deliverMsg(String senderName, String msg) {
+            received.incrementAndGet();
+        }
+
+        public void deliverBatch(MessageBatch batch) {
+            received.addAndGet(batch.size());
+        }
+
+        public void deliverRoomBatch(RoomBatch batch) {
+            received.addAndGet(batch.size());
+        }
+
+        public void deliverPresence(PresenceDelta delta) {
+        }
+
+        public void deliverRooms(RoomDirectoryDelta delta) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int[] roomSizes = {1, 10, 50, 100};
+
+        System.out.println("members,mode,messages_per_second");
+        for (int roomSize : roomSizes) {
+            ArrayList<CountingUser> users = new ArrayList<CountingUser>();
+            ArrayList<IUserChat> stubs = new ArrayList<IUserChat>();
+            for (int i = 0; i < roomSize; i++) {
+                CountingUser user = new CountingUser();
+                users.add(user);
+                stubs.add((IUserChat) UnicastRemoteObject.exportObject(user, 0));
+            }
+
+            // Warm up both paths so connections and serialization classes are ready
+            run(stubs, 200, 1);
+            run(stubs, 200, batchSize);
+
+            System.out.println(roomSize + ",single," + run(stubs, messages, 1));
+            System.out.println(roomSize + ",batch" + batchSize + "," + run(stubs, messages, batchSize));
+
+            for (CountingUser user : users) {
+                UnicastRemoteObject.unexportObject(user, true);
+            }
+        }
+        System.exit(0);
+    }
+
+    // Delivers messages to every stub and returns the aggregate delivered messages per second
+    private static long run(ArrayList<IUserChat> stubs, final int messages, final int batchSize) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(stubs.size());
+        long start = System.nanoTime();
+        for (final IUserChat stub : stubs) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (batchSize == 1) {
+                            for (int i = 0; i < messages; i++) {
+                                stub.deliverMsg("sender", "message " + i);
+                            }
+                            return;
+                        }
+                        MessageBatch batch = new MessageBatch();
+                        ChatMessage first = new ChatMessage("sender", "");
+                        batch.defineSender(first.senderId, first.senderName);
+                        for (int i = 0; i < messages; i++) {
+                            batch.add(new ChatMessage("sender", "message " + i));
+                            if (batch.size() == batchSize) {
+                                stub.deliverBatch(batch);
+                                batch.clear();
+                            }
+                        }
+                        if (!batch.isEmpty()) {
+                            stub.deliverBatch(batch);
+                        }
+                    } catch (RemoteException e) {
+                        System.err.println("Benchmark delivery failed: " + e.toString());
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        return (long) messages * stubs.size() * 1000000000L / elapsed;
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+// CPU spent marshalling one broadcast to every member of a room, encoding the message once per recipient
+// (a copy of the message per batch) against once per room (the same ChatMessage in every batch).
+// Usage: java -cp jmh/target/benchmarks.jar BroadcastEncodingBenchmark [messageLength]
+public class BroadcastEncodingBenchmark {
+    private static final int ROUNDS = 500;
+
+    // Stands in for the socket of each recipient
+    private static class NullOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messageLength = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < messageLength; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        int[] roomSizes = {1, 10, 100, 1000, 2000};
+
+        System.out.println("members,mode,us_per_broadcast,ns_per_recipient");
+        for (int roomSize : roomSizes) {
+            for (int round = 0; round < 2; round++) {
+                // The first round only warms up
+                long perRecipient = run(roomSize, text.toString(), false);
+                long shared = run(roomSize, text.toString(), true);
+                if (round == 1) {
+                    System.out.println(roomSize + ",per_recipient," + perRecipient / 1000 + "," + perRecipient / roomSize);
+                    System.out.println(roomSize + ",shared," + shared / 1000 + "," + shared / roomSize);
+                }
+            }
+        }
+    }
+
+    // Returns the average nanoseconds to marshal one broadcast to roomSize recipients
+    private static long run(int roomSize, String text, boolean shared) throws Exception {
+        NullOutputStream sink = new NullOutputStream();
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            ChatMessage message = new ChatMessage("sender", text);
+            message.seq = round + 1;
+            for (int member = 0; member < roomSize; member++) {
+                ChatMessage copy = message;
+                if (!shared) {
+                    copy = new ChatMessage("sender", text);
+                    copy.seq = message.seq;
+                    copy.timestamp = message.timestamp;
+                }
+                MessageBatch batch = new MessageBatch();
+                batch.add(copy);
+                ObjectOutputStream out = new ObjectOutputStream(sink);
+                out.writeObject(batch);
+                out.flush();
+            }
+        }
+        return (System.nanoTime() - start) / ROUNDS;
+    }
+}
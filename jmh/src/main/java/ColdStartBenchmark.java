@@ -0,0 +1,83 @@
+import java.io.File;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Time from launching a headless server JVM until "Servidor" answers on port 2020, optionally with rooms to recover
+// from a journal directory it fills first (each room gets a few messages). Port 2020 must be free.
+// Usage: java -cp jmh/target/benchmarks.jar ColdStartBenchmark [rooms] [empty journal dir] [runs]
+public class ColdStartBenchmark {
+    // Small segments, every recovered room maps its newest segment
+    private static final String SEGMENT_SIZE = "1048576";
+
+    public static void main(String[] args) throws Exception {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        File dir = new File(args.length > 1 ? args[1] : "cold-start-journal");
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        System.setProperty("chat.journal.segmentSize", SEGMENT_SIZE);
+
+        if (rooms > 0 && MessageJournal.listRooms(dir).size() != rooms) {
+            for (int i = 0; i < rooms; i++) {
+                MessageJournal journal = MessageJournal.open(dir, "room-" + i, 0);
+                for (int seq = 1; seq <= 10; seq++) {
+                    ChatMessage message = new ChatMessage("sender", "message " + seq + " of room " + i);
+                    message.seq = seq;
+                    journal.append(message);
+                }
+                journal.flush();
+            }
+        }
+
+        System.out.println("metric,value");
+        System.out.println("rooms," + rooms);
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int run = 0; run < runs; run++) {
+            long readyMillis = start(rooms > 0 ? dir : null, rooms);
+            System.out.println("run_" + run + "_ready_ms," + readyMillis);
+            best = Math.min(best, readyMillis);
+            total += readyMillis;
+        }
+        System.out.println("best_ready_ms," + best);
+        System.out.println("average_ready_ms," + total / runs);
+    }
+
+    // Launches the server and polls until it lists every recovered room, returns the milliseconds that took
+    private static long start(File journalDir, int rooms) throws Exception {
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Djava.awt.headless=true");
+        command.add("-Dchat.journal.segmentSize=" + SEGMENT_SIZE);
+        if (journalDir != null) {
+            command.add("-Dchat.journal.dir=" + journalDir.getAbsolutePath());
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Server");
+
+        long start = System.nanoTime();
+        Process server = new ProcessBuilder(command).redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            while (true) {
+                try {
+                    Registry registry = LocateRegistry.getRegistry("127.0.0.1", 2020);
+                    IServerChat serverStub = (IServerChat) registry.lookup("Servidor");
+                    if (serverStub.getRooms().size() >= rooms) {
+                        return (System.nanoTime() - start) / 1000000;
+                    }
+                } catch (Exception e) {
+                    // Not up yet
+                }
+                if (!server.isAlive()) {
+                    throw new IllegalStateException("Server exited with " + server.exitValue());
+                }
+                Thread.sleep(5);
+            }
+        } finally {
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+}
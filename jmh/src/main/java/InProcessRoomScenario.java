@@ -0,0 +1,94 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A RoomChat on its own dispatcher and delivery pools, with members that only count what they receive
+public class InProcessRoomScenario implements chatbench.RoomScenario {
+    private ExecutorService dispatchPool;
+    private ExecutorService deliveryPool;
+    private ScheduledExecutorService presenceTimer;
+    private Server.RoomChat room;
+    private int members;
+    private AtomicLong delivered = new AtomicLong();
+    // A callback is in a room under one name only, so every churning name gets its own
+    private ConcurrentHashMap<String, IUserChat> churnUsers = new ConcurrentHashMap<String, IUserChat>();
+
+    class CountingUser implements IUserChat {
+        private AtomicLong counter;
+
+        CountingUser(AtomicLong counter) {
+            this.counter = counter;
+        }
+
+        public void deliverMsg(String senderName, String msg) {
+            this.counter.incrementAndGet();
+        }
+
+        public void deliverBatch(MessageBatch batch) {
+            this.counter.addAndGet(batch.size());
+        }
+
+        public void deliverRoomBatch(RoomBatch batch) {
+            this.counter.addAndGet(batch.size());
+        }
+
+        public void deliverPresence(PresenceDelta delta) {
+        }
+
+        public void deliverRooms(RoomDirectoryDelta delta) {
+        }
+    }
+
+    @Override
+    public void setUp(int members) throws Exception {
+        // The dispatcher logs every message, which would measure the console instead of the room
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        this.members = members;
+        this.dispatchPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.deliveryPool = Executors.newCachedThreadPool();
+        this.presenceTimer = Executors.newSingleThreadScheduledExecutor();
+        this.room = new Server.RoomChat("benchmark", 1 << 16, BackpressurePolicy.BLOCK, this.dispatchPool, this.deliveryPool, this.presenceTimer);
+        for (int i = 0; i < members; i++) {
+            this.room.joinRoom("member" + i, new CountingUser(this.delivered));
+        }
+        // Only members may send, what the sender gets back is not counted
+        this.room.joinRoom("sender", new CountingUser(new AtomicLong()));
+    }
+
+    @Override
+    public void sendMsg() throws Exception {
+        this.room.sendMsg("sender", "benchmark message");
+    }
+
+    @Override
+    public void broadcast() throws Exception {
+        long target = this.delivered.get() + this.members;
+        this.room.sendMsg("sender", "benchmark message");
+        while (this.delivered.get() < target) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void joinLeave(String usrName) throws Exception {
+        IUserChat user = this.churnUsers.get(usrName);
+        if (user == null) {
+            user = new CountingUser(this.delivered);
+            this.churnUsers.put(usrName, user);
+        }
+        this.room.joinRoom(usrName, user);
+        this.room.leaveRoom(usrName);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        this.room.beginClose(false);
+        this.dispatchPool.shutdownNow();
+        this.deliveryPool.shutdownNow();
+        this.presenceTimer.shutdownNow();
+    }
+}
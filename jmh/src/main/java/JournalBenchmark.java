@@ -0,0 +1,58 @@
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Measures sustained MessageJournal append throughput with a 50 ms group commit, then the time to reopen
+// (recover) the journal it wrote.
+// Usage: java -cp jmh/target/benchmarks.jar JournalBenchmark <empty dir> [messages] [messageBytes]
+public class JournalBenchmark {
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "journal-benchmark");
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+        int messageBytes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < messageBytes; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        String msg = text.toString();
+
+        final MessageJournal journal = MessageJournal.open(dir, "benchmark", 0);
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                journal.flush();
+            }
+        }, 50, 50, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= messages; i++) {
+            ChatMessage message = new ChatMessage("sender" + (i % 100), msg);
+            message.seq = i;
+            journal.append(message);
+        }
+        flusher.shutdown();
+        flusher.awaitTermination(1, TimeUnit.MINUTES);
+        journal.flush();
+        long elapsed = System.nanoTime() - start;
+
+        long bytes = 0;
+        File[] segments = new File(dir, "benchmark").listFiles();
+        for (File segment : segments) {
+            bytes += segment.length();
+        }
+        System.out.println("metric,value");
+        System.out.println("messages," + messages);
+        System.out.println("journal_mb," + bytes / (1024 * 1024));
+        System.out.println("append_messages_per_second," + (long) messages * 1000000000L / elapsed);
+        System.out.println("append_mb_per_second," + (long) messages * messageBytes * 1000L / elapsed);
+
+        start = System.nanoTime();
+        MessageJournal recovered = MessageJournal.open(dir, "benchmark", 256);
+        System.out.println("recovery_ms," + (System.nanoTime() - start) / 1000000);
+        System.out.println("recovered_last_seq," + recovered.getLastSeq());
+        System.out.println("recovered_messages," + recovered.getRecovered().size());
+        System.exit(0);
+    }
+}
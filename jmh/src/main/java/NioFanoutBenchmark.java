@@ -0,0 +1,134 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Loopback benchmark of the NIO transport: one room broadcasting to many push connections.
+// The server side runs here and pushes MessageBatches the way Recipient does, the clients run in a child JVM
+// (so each side gets its own file descriptor limit) on a single selector, and report the delivered message rate
+// and the send-to-receive latency taken from the System.nanoTime() embedded in every message.
+// Usage: java -cp jmh/target/benchmarks.jar NioFanoutBenchmark [clients] [broadcasts] [broadcastsPerSecond] [port]
+public class NioFanoutBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("client")) {
+            runClients(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 2021;
+
+        NioPushServer server = NioPushServer.start(port);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            "NioFanoutBenchmark", "client", "" + clients, "" + broadcasts, "" + port).inheritIO().start();
+        while (server.getSessionCount() < clients) {
+            Thread.sleep(100);
+        }
+
+        NioPushServer.Session[] sessions = new NioPushServer.Session[clients];
+        for (int i = 0; i < clients; i++) {
+            sessions[i] = server.getSession(i + 1);
+        }
+        long interval = 1000000000L / rate;
+        long next = System.nanoTime();
+        long retries = 0;
+        for (int b = 0; b < broadcasts; b++) {
+            while (System.nanoTime() < next) {
+                Thread.sleep(0, 100000);
+            }
+            next += interval;
+            ChatMessage message = new ChatMessage("benchmark", Long.toString(System.nanoTime()));
+            message.seq = b + 1;
+            message.encode();
+            MessageBatch batch = new MessageBatch();
+            if (b == 0) {
+                batch.defineSender(message.senderId, message.senderName);
+            }
+            batch.add(message);
+            for (NioPushServer.Session session : sessions) {
+                while (true) {
+                    try {
+                        session.sendBatch(batch);
+                        break;
+                    } catch (RemoteException e) {
+                        // The connection is too far behind, give the selector time to drain it
+                        retries++;
+                        Thread.sleep(1);
+                    }
+                }
+            }
+        }
+        child.waitFor();
+        System.out.println("server_backlog_retries," + retries);
+        System.exit(0);
+    }
+
+    private static void runClients(int clients, int broadcasts, int port) throws Exception {
+        Selector selector = Selector.open();
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            ByteBuffer hello = ByteBuffer.allocate(8);
+            hello.putLong(i + 1);
+            hello.flip();
+            while (hello.hasRemaining()) {
+                channel.write(hello);
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(16 * 1024));
+        }
+
+        long expected = (long) clients * broadcasts;
+        long[] latencies = new long[(int) expected];
+        int received = 0;
+        long first = 0;
+        while (received < expected) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ByteBuffer buffer = (ByteBuffer) key.attachment();
+                if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                    key.cancel();
+                    continue;
+                }
+                buffer.flip();
+                while (buffer.remaining() >= 4 && buffer.remaining() >= 4 + buffer.getInt(buffer.position())) {
+                    int length = buffer.getInt();
+                    byte[] body = new byte[length];
+                    buffer.get(body);
+                    if (body[0] != NioPushServer.FRAME_MESSAGE) {
+                        continue;
+                    }
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 1, length - 1));
+                    ChatMessage message = ChatMessage.decode(in);
+                    long now = System.nanoTime();
+                    if (first == 0) {
+                        first = now;
+                    }
+                    latencies[received++] = now - Long.parseLong(message.msg);
+                }
+                buffer.compact();
+            }
+        }
+        long elapsed = System.nanoTime() - first;
+
+        Arrays.sort(latencies);
+        System.out.println("metric,value");
+        System.out.println("clients," + clients);
+        System.out.println("delivered_messages," + received);
+        System.out.println("delivered_messages_per_second," + received * 1000000000L / Math.max(elapsed, 1));
+        System.out.println("latency_p50_us," + latencies[received / 2] / 1000);
+        System.out.println("latency_p99_us," + latencies[(int) (received * 0.99)] / 1000);
+        System.out.println("latency_max_us," + latencies[received - 1] / 1000);
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The same room as InProcessRoomScenario, but exported and bound in a registry on port 2020 like the real server,
+// looked up by the benchmark through the registry and joined by exported members, so every call goes over RMI
+public class RmiLoopbackScenario implements chatbench.RoomScenario {
+    private static final String ROOM_NAME = "benchmark";
+
+    private Registry registry;
+    private ExecutorService dispatchPool;
+    private ExecutorService deliveryPool;
+    private ScheduledExecutorService presenceTimer;
+    private Server.RoomChat room;
+    private IRoomChat roomStub;
+    private int members;
+    private ArrayList<IUserChat> users = new ArrayList<IUserChat>();
+    private AtomicLong delivered = new AtomicLong();
+    // A callback is in a room under one name only, so every churning name gets its own, by name with its stub
+    private ConcurrentHashMap<String, IUserChat> churnUsers = new ConcurrentHashMap<String, IUserChat>();
+    private ConcurrentHashMap<String, IUserChat> churnUserStubs = new ConcurrentHashMap<String, IUserChat>();
+
+    class CountingUser implements IUserChat {
+        private AtomicLong counter;
+
+        CountingUser(AtomicLong counter) {
+            this.counter = counter;
+        }
+
+        public void deliverMsg(String senderName, String msg) {
+            this.counter.incrementAndGet();
+        }
+
+        public void deliverBatch(MessageBatch batch) {
+            this.counter.addAndGet(batch.size());
+        }
+
+        public void deliverRoomBatch(RoomBatch batch) {
+            this.counter.addAndGet(batch.size());
+        }
+
+        public void deliverPresence(PresenceDelta delta) {
+        }
+
+        public void deliverRooms(RoomDirectoryDelta delta) {
+        }
+    }
+
+    @Override
+    public void setUp(int members) throws Exception {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        this.members = members;
+        this.registry = LocateRegistry.createRegistry(2020);
+        this.dispatchPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.deliveryPool = Executors.newCachedThreadPool();
+        this.presenceTimer = Executors.newSingleThreadScheduledExecutor();
+        this.room = new Server.RoomChat(ROOM_NAME, 1 << 16, BackpressurePolicy.BLOCK, this.dispatchPool, this.deliveryPool, this.presenceTimer);
+        this.registry.bind(ROOM_NAME, UnicastRemoteObject.exportObject(this.room, 0));
+
+        this.roomStub = (IRoomChat) LocateRegistry.getRegistry("127.0.0.1", 2020).lookup(ROOM_NAME);
+        for (int i = 0; i < members; i++) {
+            CountingUser user = new CountingUser(this.delivered);
+            this.users.add(user);
+            this.roomStub.joinRoom("member" + i, (IUserChat) UnicastRemoteObject.exportObject(user, 0));
+        }
+        // Only members may send, what the sender gets back is not counted
+        CountingUser sender = new CountingUser(new AtomicLong());
+        this.users.add(sender);
+        this.roomStub.joinRoom("sender", (IUserChat) UnicastRemoteObject.exportObject(sender, 0));
+    }
+
+    @Override
+    public void sendMsg() throws Exception {
+        this.roomStub.sendMsg("sender", "benchmark message");
+    }
+
+    @Override
+    public void broadcast() throws Exception {
+        long target = this.delivered.get() + this.members;
+        this.roomStub.sendMsg("sender", "benchmark message");
+        while (this.delivered.get() < target) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void joinLeave(String usrName) throws Exception {
+        IUserChat stub = this.churnUserStubs.get(usrName);
+        if (stub == null) {
+            CountingUser user = new CountingUser(this.delivered);
+            stub = (IUserChat) UnicastRemoteObject.exportObject(user, 0);
+            this.churnUsers.put(usrName, user);
+            this.churnUserStubs.put(usrName, stub);
+        }
+        this.roomStub.joinRoom(usrName, stub);
+        this.roomStub.leaveRoom(usrName);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        this.room.beginClose(false);
+        this.registry.unbind(ROOM_NAME);
+        UnicastRemoteObject.unexportObject(this.room, true);
+        for (IUserChat user : this.users) {
+            UnicastRemoteObject.unexportObject(user, true);
+        }
+        for (IUserChat user : this.churnUsers.values()) {
+            UnicastRemoteObject.unexportObject(user, true);
+        }
+        UnicastRemoteObject.unexportObject(this.registry, true);
+        this.dispatchPool.shutdownNow();
+        this.deliveryPool.shutdownNow();
+        this.presenceTimer.shutdownNow();
+    }
+}
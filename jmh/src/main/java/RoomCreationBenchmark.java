@@ -0,0 +1,63 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+
+// Creates rooms in bulk on an in-process headless server, then looks a sample of them up in the registry, asks each
+// for its members over RMI and closes them all.
+// Usage: java -cp jmh/target/benchmarks.jar RoomCreationBenchmark [rooms] [registry port]
+public class RoomCreationBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 2030;
+        int sample = Math.min(rooms, 1000);
+        System.setProperty("java.awt.headless", "true");
+        System.setProperty("chat.metrics.dumpSeconds", "0");
+
+        Registry registry = LocateRegistry.createRegistry(port);
+        Server.ServerChat server = new Server.ServerChat(registry);
+        // The server logs every room it creates and closes
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rooms; i++) {
+            server.createRoom("room-" + i);
+        }
+        long createNanos = System.nanoTime() - start;
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heapBytes = runtime.totalMemory() - runtime.freeMemory();
+
+        // What a client does for RFA7, through the loopback
+        Registry clientRegistry = LocateRegistry.getRegistry("127.0.0.1", port);
+        start = System.nanoTime();
+        for (int i = 0; i < sample; i++) {
+            IRoomChat room = (IRoomChat) clientRegistry.lookup("room-" + (long) i * rooms / sample);
+            ArrayList<String> members = room.getMembers();
+            if (!members.isEmpty()) {
+                throw new IllegalStateException("New room has members");
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rooms; i++) {
+            server.closeRoom("room-" + i);
+        }
+        long closeNanos = System.nanoTime() - start;
+
+        out.println("metric,value");
+        out.println("rooms," + rooms);
+        out.println("create_ms," + createNanos / 1000000);
+        out.println("create_rooms_per_second," + (long) rooms * 1000000000L / createNanos);
+        out.println("heap_mb_after_create," + heapBytes / (1024 * 1024));
+        out.println("lookup_and_call_us," + lookupNanos / sample / 1000);
+        out.println("close_ms," + closeNanos / 1000000);
+        System.exit(0);
+    }
+}
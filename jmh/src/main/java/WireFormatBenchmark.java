@@ -0,0 +1,118 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Bytes and heap allocations per delivered message for the three ways a message can reach a client:
+// deliverMsg(String, String), the old ArrayList<Pair<String, String>> batch and MessageBatch.
+// Every call is encoded with a fresh ObjectOutputStream, the way RMI marshals the arguments of one call.
+// Usage: java -cp jmh/target/benchmarks.jar WireFormatBenchmark [batchSize] [messageLength]
+public class WireFormatBenchmark {
+    private static final int ROUNDS = 2000;
+    private static final int SENDERS = 8;
+
+    // The String pair of the old batch, Pair itself is no longer sent anywhere and is not Serializable
+    private static class LegacyPair implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String first;
+        String second;
+
+        LegacyPair(String first, String second) {
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    private interface Encoder {
+        // Encodes and decodes messages [from, from + count) and returns the encoded size
+        int run(int from, int count) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int messageLength = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < messageLength; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        final ArrayList<ChatMessage> messages = new ArrayList<ChatMessage>();
+        for (int i = 0; i < batchSize; i++) {
+            ChatMessage message = new ChatMessage("participant-" + (i % SENDERS), text.toString());
+            message.seq = i + 1;
+            messages.add(message);
+        }
+
+        System.out.println("format,bytes_per_message,allocated_bytes_per_message");
+        report("strings", batchSize, new Encoder() {
+            public int run(int from, int count) throws Exception {
+                int bytes = 0;
+                for (int i = from; i < from + count; i++) {
+                    ChatMessage message = messages.get(i);
+                    bytes += roundTrip(new Object[] {message.senderName, message.msg});
+                }
+                return bytes;
+            }
+        });
+        report("pair_batch", batchSize, new Encoder() {
+            public int run(int from, int count) throws Exception {
+                ArrayList<LegacyPair> batch = new ArrayList<LegacyPair>();
+                for (int i = from; i < from + count; i++) {
+                    batch.add(new LegacyPair(messages.get(i).senderName, messages.get(i).msg));
+                }
+                return roundTrip(new Object[] {batch});
+            }
+        });
+        // Steady state: the recipient already knows every sender, as after its first batch
+        final HashMap<Integer, String> senderNames = new HashMap<Integer, String>();
+        report("message_batch", batchSize, new Encoder() {
+            public int run(int from, int count) throws Exception {
+                MessageBatch batch = new MessageBatch();
+                for (int i = from; i < from + count; i++) {
+                    ChatMessage message = messages.get(i);
+                    if (!senderNames.containsKey(message.senderId)) {
+                        senderNames.put(message.senderId, message.senderName);
+                        batch.defineSender(message.senderId, message.senderName);
+                    }
+                    batch.add(message);
+                }
+                return roundTrip(new Object[] {batch});
+            }
+        });
+    }
+
+    private static void report(String format, int batchSize, Encoder encoder) throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            encoder.run(0, batchSize);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long bytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            bytes += encoder.run(0, batchSize);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        long delivered = (long) ROUNDS * batchSize;
+        System.out.println(format + "," + bytes / delivered + "," + allocated / delivered);
+    }
+
+    private static int roundTrip(Object[] arguments) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(buffer);
+        for (Object argument : arguments) {
+            out.writeObject(argument);
+        }
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        for (int i = 0; i < arguments.length; i++) {
+            in.readObject();
+        }
+        return buffer.size();
+    }
+}
@@ -0,0 +1,55 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A room bound in a local registry on port 2020 and used through RMI stubs, as clients see it
+// Rate limits are turned off, these measure how fast the room itself can go
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.limit.userRate=0", "-Dchat.limit.roomRate=0"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class RmiLoopbackBenchmark {
+    @Param({"1", "10", "100"})
+    public int members;
+
+    private RoomScenario scenario;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.scenario = RoomScenario.create("RmiLoopbackScenario");
+        this.scenario.setUp(this.members);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.scenario.tearDown();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void sendMsg() throws Exception {
+        this.scenario.sendMsg();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void fanOut() throws Exception {
+        this.scenario.broadcast();
+    }
+}
@@ -0,0 +1,113 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// In-process RoomChat benchmarks: sendMsg enqueue throughput, broadcast latency by room size and join/leave churn
+// Rate limits are turned off, these measure how fast the room itself can go
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.limit.userRate=0", "-Dchat.limit.roomRate=0"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RoomDispatchBenchmark {
+    @State(Scope.Benchmark)
+    public static class EmptyRoom {
+        RoomScenario scenario;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.scenario = RoomScenario.create("InProcessRoomScenario");
+            this.scenario.setUp(0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.scenario.tearDown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FullRoom {
+        @Param({"1", "10", "100", "1000", "10000"})
+        public int members;
+
+        RoomScenario scenario;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.scenario = RoomScenario.create("InProcessRoomScenario");
+            this.scenario.setUp(this.members);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.scenario.tearDown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ChurnRoom {
+        @Param({"0", "1000"})
+        public int members;
+
+        RoomScenario scenario;
+        AtomicInteger nextUser = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.scenario = RoomScenario.create("InProcessRoomScenario");
+            this.scenario.setUp(this.members);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.scenario.tearDown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ChurnUser {
+        String usrName;
+
+        @Setup(Level.Trial)
+        public void setUp(ChurnRoom room) {
+            this.usrName = "churn" + room.nextUser.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void enqueue(EmptyRoom room) throws Exception {
+        room.scenario.sendMsg();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void fanOut(FullRoom room) throws Exception {
+        room.scenario.broadcast();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public void joinLeave(ChurnRoom room, ChurnUser user) throws Exception {
+        room.scenario.joinLeave(user.usrName);
+    }
+}
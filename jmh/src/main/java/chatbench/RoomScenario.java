@@ -0,0 +1,26 @@
+package chatbench;
+
+// A room set up for benchmarking. The implementations live in the unnamed package next to the chat classes,
+// which code in a named package (as JMH requires for benchmarks) cannot refer to directly.
+public interface RoomScenario {
+    void setUp(int members) throws Exception;
+
+    // Hands one message to the room without waiting for it to be delivered
+    void sendMsg() throws Exception;
+
+    // Sends one message and waits until every member received it
+    void broadcast() throws Exception;
+
+    // Joins the room as usrName and leaves it again, every name with a callback of its own
+    void joinLeave(String usrName) throws Exception;
+
+    void tearDown() throws Exception;
+
+    static RoomScenario create(String className) {
+        try {
+            return (RoomScenario) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create scenario " + className, e);
+        }
+    }
+}
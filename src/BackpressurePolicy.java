@@ -0,0 +1,8 @@
+public enum BackpressurePolicy {
+    // The sender waits until the room has room for its message
+    BLOCK,
+    // The oldest queued message is discarded to make space for the new one
+    DROP_OLDEST,
+    // The message is refused and the sender gets a RemoteException
+    REJECT
+}
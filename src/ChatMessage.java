@@ -0,0 +1,131 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+
+// Compact envelope of a chat message. On its own it is written with the sender name, inside a MessageBatch the
+// sender is only written as its SenderTable id. The batch form is encoded once per message and the same bytes are
+// copied into the batch of every recipient.
+public class ChatMessage implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    // Position of the message in its room, assigned by the dispatcher starting at 1
+    public long seq;
+    public int senderId = SenderTable.NO_SENDER;
+    public String senderName;
+    public String msg;
+    // Wall clock time when the room accepted the message
+    public long timestamp;
+    // System.nanoTime() when the message entered the room queue
+    public transient long enqueuedAt;
+    // Room the message was sent to, set by the room and on the client by RoomBatch
+    public transient String roomName;
+    private transient volatile byte[] encoded;
+
+    // Used by deserialization only
+    public ChatMessage() {
+    }
+
+    ChatMessage(String senderName, String msg) {
+        this.senderId = SenderTable.intern(senderName);
+        this.senderName = senderName;
+        this.msg = msg;
+        this.timestamp = System.currentTimeMillis();
+        this.enqueuedAt = System.nanoTime();
+    }
+
+    // Batch form: senderId + 1, seq, timestamp and payload, the bytes are immutable once seq is assigned
+    public byte[] encode() {
+        byte[] bytes = this.encoded;
+        if (bytes == null) {
+            byte[] payload = this.msg.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(payload.length + 24);
+            DataOutputStream out = new DataOutputStream(buffer);
+            try {
+                // Shifted by one so that NO_SENDER is encoded as 0
+                writeVarLong(out, this.senderId + 1);
+                writeVarLong(out, this.seq);
+                writeVarLong(out, this.timestamp);
+                writeVarLong(out, payload.length);
+                out.write(payload);
+            } catch (IOException e) {
+                // Writing to memory does not fail
+                throw new IllegalStateException(e);
+            }
+            bytes = buffer.toByteArray();
+            this.encoded = bytes;
+        }
+        return bytes;
+    }
+
+    static ChatMessage decode(DataInput in) throws IOException {
+        ChatMessage message = new ChatMessage();
+        message.senderId = (int) readVarLong(in) - 1;
+        message.seq = readVarLong(in);
+        message.timestamp = readVarLong(in);
+        message.readPayload(in);
+        return message;
+    }
+
+    void writePayload(DataOutput out) throws IOException {
+        byte[] payload = this.msg.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, payload.length);
+        out.write(payload);
+    }
+
+    void readPayload(DataInput in) throws IOException {
+        byte[] payload = new byte[(int) readVarLong(in)];
+        in.readFully(payload);
+        this.msg = new String(payload, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeBoolean(this.senderName != null);
+        if (this.senderName != null) {
+            out.writeUTF(this.senderName);
+        }
+        writeVarLong(out, this.seq);
+        writeVarLong(out, this.timestamp);
+        this.writePayload(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        this.senderName = in.readBoolean() ? in.readUTF() : null;
+        this.seq = readVarLong(in);
+        this.timestamp = readVarLong(in);
+        this.readPayload(in);
+    }
+
+    // Unsigned LEB128, small values such as ids, lengths and deltas take a single byte
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+
+    public String toString() {
+        return "[" + senderName + ":" + msg + "]";
+    }
+}
@@ -0,0 +1,232 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+// Server wide counters and latency histograms. Rooms and recipients record into the shared instance from their
+// hot paths, which only touches striped counters and histogram buckets, so recording never allocates or locks.
+// Gauges such as queue depths are computed when they are read, from the rooms handed over by ServerChat.
+public class ChatMetrics implements ChatMetricsMBean {
+    static final String OBJECT_NAME = "elc1018.chat:type=ServerChat";
+
+    private static final ChatMetrics instance = new ChatMetrics();
+
+    final LongAdder acceptedMessages = new LongAdder();
+    final LongAdder dispatchedMessages = new LongAdder();
+    final LongAdder deliveredMessages = new LongAdder();
+    final LongAdder deliveryFailures = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    // Evictions of clients that stopped renewing their lease, also counted in evictions
+    final LongAdder expiredLeases = new LongAdder();
+    final LongAdder droppedMessages = new LongAdder();
+    final LongAdder rejectedMessages = new LongAdder();
+    // Turned away by the per user and per room rate limits of sendMsg
+    final LongAdder userLimitedMessages = new LongAdder();
+    final LongAdder roomLimitedMessages = new LongAdder();
+    // Messages added to the search indexes, and those left out because an indexer fell too far behind
+    final LongAdder indexedMessages = new LongAdder();
+    final LongAdder unindexedMessages = new LongAdder();
+    // Dropped from the search indexes to keep all the rooms together under chat.search.maxTotalMessages
+    final LongAdder evictedIndexMessages = new LongAdder();
+    // From sendMsg until the dispatcher takes the message
+    final LatencyHistogram enqueueToDispatch = new LatencyHistogram();
+    // From sendMsg until the deliverBatch or deliverMsg call carrying the message returned
+    final LatencyHistogram enqueueToDeliver = new LatencyHistogram();
+    // Duration of a single delivery call to one recipient
+    final LatencyHistogram deliveryCall = new LatencyHistogram();
+
+    private volatile Map<String, Server.RoomChat> rooms = new ConcurrentHashMap<String, Server.RoomChat>();
+
+    private ChatMetrics() {
+    }
+
+    public static ChatMetrics getInstance() {
+        return instance;
+    }
+
+    // Called once by ServerChat with its live room list, rooms created elsewhere (benchmarks) only feed the counters
+    void register(Map<String, Server.RoomChat> rooms) {
+        this.rooms = rooms;
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            System.err.println("Error while registering the metrics MBean: " + e.toString());
+        }
+    }
+
+    @Override
+    public int getActiveRooms() {
+        return this.rooms.size();
+    }
+
+    // Memberships, a user that is in two rooms counts twice
+    @Override
+    public int getActiveUsers() {
+        int users = 0;
+        for (Server.RoomChat room : this.rooms.values()) {
+            users += room.getMemberCount();
+        }
+        return users;
+    }
+
+    @Override
+    public long getAcceptedMessages() {
+        return this.acceptedMessages.sum();
+    }
+
+    @Override
+    public long getDispatchedMessages() {
+        return this.dispatchedMessages.sum();
+    }
+
+    @Override
+    public long getDeliveredMessages() {
+        return this.deliveredMessages.sum();
+    }
+
+    @Override
+    public long getDeliveryFailures() {
+        return this.deliveryFailures.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    @Override
+    public long getExpiredLeases() {
+        return this.expiredLeases.sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return this.droppedMessages.sum();
+    }
+
+    @Override
+    public long getRejectedMessages() {
+        return this.rejectedMessages.sum();
+    }
+
+    @Override
+    public long getUserLimitedMessages() {
+        return this.userLimitedMessages.sum();
+    }
+
+    @Override
+    public long getRoomLimitedMessages() {
+        return this.roomLimitedMessages.sum();
+    }
+
+    @Override
+    public long getIndexedMessages() {
+        return this.indexedMessages.sum();
+    }
+
+    @Override
+    public long getUnindexedMessages() {
+        return this.unindexedMessages.sum();
+    }
+
+    @Override
+    public long getEvictedIndexMessages() {
+        return this.evictedIndexMessages.sum();
+    }
+
+    @Override
+    public long getDroppedLogLines() {
+        return Log.getDroppedLines();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Server.RoomChat room : this.rooms.values()) {
+            max = Math.max(max, room.getQueueDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public String[] getQueueDepths() {
+        ArrayList<String> depths = new ArrayList<String>();
+        for (Map.Entry<String, Server.RoomChat> entry : this.rooms.entrySet()) {
+            int depth = entry.getValue().getQueueDepth();
+            if (depth > 0) {
+                depths.add(entry.getKey() + "=" + depth);
+            }
+        }
+        return depths.toArray(new String[0]);
+    }
+
+    @Override
+    public long getEnqueueToDispatchP99Micros() {
+        return this.enqueueToDispatch.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getEnqueueToDeliverP50Micros() {
+        return this.enqueueToDeliver.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getEnqueueToDeliverP99Micros() {
+        return this.enqueueToDeliver.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getEnqueueToDeliverP999Micros() {
+        return this.enqueueToDeliver.getPercentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getDeliveryCallP50Micros() {
+        return this.deliveryCall.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getDeliveryCallP99Micros() {
+        return this.deliveryCall.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public String getSnapshot() {
+        return "rooms=" + this.getActiveRooms()
+            + " users=" + this.getActiveUsers()
+            + " maxQueue=" + this.getMaxQueueDepth()
+            + "\naccepted=" + this.getAcceptedMessages()
+            + " dispatched=" + this.getDispatchedMessages()
+            + " delivered=" + this.getDeliveredMessages()
+            + " dropped=" + this.getDroppedMessages()
+            + " rejected=" + this.getRejectedMessages()
+            + " userLimited=" + this.getUserLimitedMessages()
+            + " roomLimited=" + this.getRoomLimitedMessages()
+            + " indexed=" + this.getIndexedMessages()
+            + " unindexed=" + this.getUnindexedMessages()
+            + " evictedIndex=" + this.getEvictedIndexMessages()
+            + "\nfailures=" + this.getDeliveryFailures()
+            + " evictions=" + this.getEvictions()
+            + " expiredLeases=" + this.getExpiredLeases()
+            + " droppedLogLines=" + this.getDroppedLogLines()
+            + "\ndispatchP99Us=" + this.getEnqueueToDispatchP99Micros()
+            + " deliverP50Us=" + this.getEnqueueToDeliverP50Micros()
+            + " deliverP99Us=" + this.getEnqueueToDeliverP99Micros()
+            + " deliverP999Us=" + this.getEnqueueToDeliverP999Micros()
+            + " callP50Us=" + this.getDeliveryCallP50Micros()
+            + " callP99Us=" + this.getDeliveryCallP99Micros();
+    }
+
+    @Override
+    public void resetLatencies() {
+        this.enqueueToDispatch.reset();
+        this.enqueueToDeliver.reset();
+        this.deliveryCall.reset();
+    }
+}
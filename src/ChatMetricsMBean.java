@@ -0,0 +1,56 @@
+// Management interface of ChatMetrics, registered as elc1018.chat:type=ServerChat on the platform MBean server.
+// Latencies are in microseconds and come from the histograms since the last resetLatencies().
+public interface ChatMetricsMBean {
+    int getActiveRooms();
+
+    int getActiveUsers();
+
+    long getAcceptedMessages();
+
+    long getDispatchedMessages();
+
+    long getDeliveredMessages();
+
+    long getDeliveryFailures();
+
+    long getEvictions();
+
+    long getExpiredLeases();
+
+    long getDroppedMessages();
+
+    long getRejectedMessages();
+
+    long getUserLimitedMessages();
+
+    long getRoomLimitedMessages();
+
+    long getIndexedMessages();
+
+    long getUnindexedMessages();
+
+    long getEvictedIndexMessages();
+
+    long getDroppedLogLines();
+
+    int getMaxQueueDepth();
+
+    // "room=depth" for every room that currently has queued messages
+    String[] getQueueDepths();
+
+    long getEnqueueToDispatchP99Micros();
+
+    long getEnqueueToDeliverP50Micros();
+
+    long getEnqueueToDeliverP99Micros();
+
+    long getEnqueueToDeliverP999Micros();
+
+    long getDeliveryCallP50Micros();
+
+    long getDeliveryCallP99Micros();
+
+    String getSnapshot();
+
+    void resetLatencies();
+}
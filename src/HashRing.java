@@ -0,0 +1,47 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hashing of room names onto room hosts. Every host owns -Dchat.shard.virtualNodes points of the ring,
+// so adding or removing a host only moves the rooms between it and its neighbours, about 1/N of them.
+public class HashRing {
+    static final int VIRTUAL_NODES = Integer.getInteger("chat.shard.virtualNodes", 128);
+
+    private TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    public synchronized void add(String hostId) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            this.ring.put(hash(hostId + "#" + i), hostId);
+        }
+    }
+
+    public synchronized void remove(String hostId) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            this.ring.remove(hash(hostId + "#" + i), hostId);
+        }
+    }
+
+    // The host owning key, null when the ring is empty
+    public synchronized String getHost(String key) {
+        if (this.ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> owner = this.ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : this.ring.firstEntry().getValue();
+    }
+
+    // FNV-1a followed by the MurmurHash3 finalizer, the latter spreads similar names such as room-1 and room-2
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
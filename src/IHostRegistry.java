@@ -0,0 +1,9 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Where RoomHost processes join and leave the set of hosts the "Servidor" directory places rooms on. Bound under
+// its own name, "ServidorHosts", so the stub chat clients get from "Servidor" cannot change the ring.
+public interface IHostRegistry extends Remote {
+    public void registerHost(String hostId, IRoomHost host) throws RemoteException;
+    public void unregisterHost(String hostId) throws RemoteException;
+}
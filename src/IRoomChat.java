@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 
 public interface IRoomChat extends Remote {
     public void sendMsg(String usrName, String msg) throws RemoteException;
@@ -7,4 +8,14 @@ public interface IRoomChat extends Remote {
     public void leaveRoom(String usrName) throws RemoteException;
     public void closeRoom() throws RemoteException;
     public String getRoomName() throws RemoteException;    
+    // Returns up to maxMessages of the recent messages with a sequence number greater than sinceSeq, oldest first
+    public ArrayList<ChatMessage> getHistory(long sinceSeq, int maxMessages) throws RemoteException;
+    // Names of the current members, later changes arrive as presence deltas
+    public ArrayList<String> getMembers() throws RemoteException;
+    // Up to maxResults messages, newest first, that contain every word of terms, were sent by senderName (any
+    // sender if null) and were accepted between fromTime and toTime in milliseconds since the epoch
+    public ArrayList<ChatMessage> search(String terms, String senderName, long fromTime, long toTime, int maxResults) throws RemoteException;
+    // Keeps the client behind user in its rooms of the process hosting this room for the returned number of
+    // milliseconds, 0 if it is not in this room (it was evicted and has to join again)
+    public long renewLease(IUserChat user) throws RemoteException;
 }
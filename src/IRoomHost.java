@@ -0,0 +1,12 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// A process hosting rooms on behalf of the "Servidor" directory, which decides where each room lives
+public interface IRoomHost extends Remote {
+    // Creates the room, returning the handle the directory hands out to clients
+    public IRoomChat createRoom(String roomName) throws RemoteException;
+    public void closeRoom(String roomName) throws RemoteException;
+    // Closes the room if nobody is in it, false if it has members or this host does not have it
+    public boolean closeRoomIfEmpty(String roomName) throws RemoteException;
+    public int getRoomCount() throws RemoteException;
+}
@@ -0,0 +1,17 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+// The one remote object through which every room of a process is reached, rooms are addressed by the id their
+// RoomHandle carries. Each method is the IRoomChat method of the same name.
+public interface IRoomRouter extends Remote {
+    public void sendMsg(long roomId, String usrName, String msg) throws RemoteException;
+    public void joinRoom(long roomId, String usrName, IUserChat user) throws RemoteException;
+    public void leaveRoom(long roomId, String usrName) throws RemoteException;
+    public void closeRoom(long roomId) throws RemoteException;
+    public ArrayList<ChatMessage> getHistory(long roomId, long sinceSeq, int maxMessages) throws RemoteException;
+    public ArrayList<String> getMembers(long roomId) throws RemoteException;
+    public ArrayList<ChatMessage> search(long roomId, String terms, String senderName, long fromTime, long toTime,
+        int maxResults) throws RemoteException;
+    public long renewLease(long roomId, IUserChat user) throws RemoteException;
+}
@@ -5,4 +5,14 @@ import java.util.ArrayList;
 public interface IServerChat extends Remote {
     public ArrayList<String> getRooms() throws RemoteException;
     public void createRoom(String roomName) throws RemoteException;
+    // Up to maxRooms room names starting with prefix, in order, after afterRoom (null for the first page)
+    public ArrayList<String> getRooms(String prefix, String afterRoom, int maxRooms) throws RemoteException;
+    // Pushes room directory deltas to user, returns the version the first of them starts from
+    public long subscribeRooms(IUserChat user) throws RemoteException;
+    public void unsubscribeRooms(IUserChat user) throws RemoteException;
+    // Handle of the room wherever it is hosted, null if there is no such room
+    public IRoomChat getRoom(String roomName) throws RemoteException;
+    // IRoomChat.search of the room wherever it is hosted
+    public ArrayList<ChatMessage> searchMessages(String roomName, String terms, String senderName, long fromTime,
+        long toTime, int maxResults) throws RemoteException;
 }
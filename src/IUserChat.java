@@ -3,4 +3,12 @@ import java.rmi.RemoteException;
 
 public interface IUserChat extends Remote {
     public void deliverMsg(String senderName, String msg) throws RemoteException;
+    // Delivers several messages in order with a single remote call
+    public void deliverBatch(MessageBatch batch) throws RemoteException;
+    // Messages from every room the client is in through this callback, tagged with their room
+    public void deliverRoomBatch(RoomBatch batch) throws RemoteException;
+    // Joins, leaves and evictions in a room since the previous delta, coalesced by the server
+    public void deliverPresence(PresenceDelta delta) throws RemoteException;
+    // Rooms created and closed since the previous delta, only sent after subscribeRooms
+    public void deliverRooms(RoomDirectoryDelta delta) throws RemoteException;
 }
@@ -0,0 +1,175 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Runs many SimulatedUsers against a server from one JVM to measure what it can take. Configured with
+//   -Dchat.load.users=N            simulated users (100)
+//   -Dchat.load.rooms=N            rooms load-room-0 to load-room-N-1, created if missing (10)
+//   -Dchat.load.distribution=D     uniform spreads users evenly, skewed puts most of them in the first rooms
+//   -Dchat.load.roomsPerUser=N     rooms every user is in with one callback, its first room and the ones after (1)
+//   -Dchat.load.rate=R             messages per second sent by each user, 0 only listens (1)
+//   -Dchat.load.messageSize=N      padding characters added to every message (64)
+//   -Dchat.load.seconds=N          how long to send (30)
+//   -Dchat.load.senderThreads=N    threads sharing the sendMsg calls of all users (32)
+//   -Dchat.load.renewMillis=N      how often every user renews its lease, 0 never does (10000)
+// and prints throughput, end to end latency, gaps and ordering violations every 5 seconds and at the end.
+public class LoadGenerator {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("rmi") && !args[1].equals("nio"))) {
+            System.err.println("Pass the server IP as the first command line argument, optionally followed by rmi or nio");
+            return;
+        }
+        String serverAddress = args[0];
+        boolean useNio = args.length == 2 && args[1].equals("nio");
+        int userCount = Integer.getInteger("chat.load.users", 100);
+        int roomCount = Integer.getInteger("chat.load.rooms", 10);
+        boolean skewed = System.getProperty("chat.load.distribution", "uniform").equals("skewed");
+        int roomsPerUser = Math.min(Integer.getInteger("chat.load.roomsPerUser", 1), roomCount);
+        double rate = Double.parseDouble(System.getProperty("chat.load.rate", "1"));
+        int messageSize = Integer.getInteger("chat.load.messageSize", 64);
+        int seconds = Integer.getInteger("chat.load.seconds", 30);
+        int senderThreads = Integer.getInteger("chat.load.senderThreads", 32);
+        long renewMillis = Long.getLong("chat.load.renewMillis", 10000);
+
+        Registry registry = LocateRegistry.getRegistry(serverAddress, 2020);
+        IServerChat server = (IServerChat) registry.lookup("Servidor");
+        ArrayList<String> existingRooms = server.getRooms();
+        IRoomChat[] rooms = new IRoomChat[roomCount];
+        for (int i = 0; i < roomCount; i++) {
+            String roomName = "load-room-" + i;
+            if (!existingRooms.contains(roomName)) {
+                server.createRoom(roomName);
+            }
+            rooms[i] = server.getRoom(roomName);
+        }
+
+        SimulatedUser.Stats stats = new SimulatedUser.Stats();
+        ArrayList<SimulatedUser> users = new ArrayList<SimulatedUser>();
+        Random random = new Random(42);
+        int[] membersPerRoom = new int[roomCount];
+        long start = System.nanoTime();
+        for (int i = 0; i < userCount; i++) {
+            int room = skewed ? skewedRoom(random, roomCount) : i % roomCount;
+            IRoomChat[] userRooms = new IRoomChat[roomsPerUser];
+            for (int j = 0; j < roomsPerUser; j++) {
+                membersPerRoom[(room + j) % roomCount]++;
+                userRooms[j] = rooms[(room + j) % roomCount];
+            }
+            SimulatedUser user = new SimulatedUser(i, userRooms, messageSize, stats);
+            if (useNio) {
+                long token = new SecureRandom().nextLong();
+                NioPushConnections pushConnections = NioPushConnections.connect(serverAddress,
+                    Integer.getInteger("chat.nio.port", 2021), token, user);
+                user.setStub(pushConnections.getUserRef(), pushConnections);
+            } else {
+                user.setStub((IUserChat) UnicastRemoteObject.exportObject(user, 0), null);
+            }
+            user.join();
+            users.add(user);
+        }
+        System.out.println("Joined " + userCount + " users to " + roomCount + " rooms (" + roomsPerUser + " each) in "
+            + (System.nanoTime() - start) / 1000000 + " ms, largest room has " + max(membersPerRoom) + " members");
+
+        // Users of a room only start sending once everybody joined, so the first message of every sender is 1
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(senderThreads);
+        if (rate > 0) {
+            long periodNanos = (long) (1000000000L / rate);
+            for (final SimulatedUser user : users) {
+                senders.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        user.send();
+                    }
+                }, (long) (random.nextDouble() * periodNanos), periodNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (renewMillis > 0) {
+            for (final SimulatedUser user : users) {
+                senders.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        user.renewLeases();
+                    }
+                }, (long) (random.nextDouble() * renewMillis), renewMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        long runStart = System.nanoTime();
+        long lastReport = runStart;
+        long lastSent = 0;
+        long lastReceived = 0;
+        while (System.nanoTime() - runStart < seconds * 1000000000L) {
+            Thread.sleep(Math.min(5000, Math.max(1, seconds * 1000L - (System.nanoTime() - runStart) / 1000000)));
+            long now = System.nanoTime();
+            long sent = stats.sent.sum();
+            long received = stats.received.sum();
+            double elapsed = (now - lastReport) / 1e9;
+            System.out.println(String.format("%5ds sent/s=%.0f received/s=%.0f p50=%.2fms p99=%.2fms p999=%.2fms gaps=%d violations=%d failures=%d limited=%d",
+                (now - runStart) / 1000000000L, (sent - lastSent) / elapsed, (received - lastReceived) / elapsed,
+                stats.intervalLatency.getPercentile(50) / 1e6, stats.intervalLatency.getPercentile(99) / 1e6,
+                stats.intervalLatency.getPercentile(99.9) / 1e6, stats.gaps.sum(), stats.orderViolations.sum(),
+                stats.sendFailures.sum(), stats.rateLimited.sum()));
+            stats.intervalLatency.reset();
+            lastReport = now;
+            lastSent = sent;
+            lastReceived = received;
+        }
+        senders.shutdownNow();
+        senders.awaitTermination(10, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - runStart) / 1e9;
+        // Let the deliveries that are still in flight arrive
+        Thread.sleep(2000);
+
+        System.out.println(String.format("Total sent=%d (%.0f/s) received=%d (%.0f/s) p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+            stats.sent.sum(), stats.sent.sum() / elapsed, stats.received.sum(), stats.received.sum() / elapsed,
+            stats.latency.getPercentile(50) / 1e6, stats.latency.getPercentile(99) / 1e6,
+            stats.latency.getPercentile(99.9) / 1e6, stats.latency.getPercentile(100) / 1e6));
+        System.out.println("Gaps=" + stats.gaps.sum() + " ordering violations=" + stats.orderViolations.sum()
+            + " wrong senders=" + stats.wrongSenders.sum()
+            + " failed sends=" + stats.sendFailures.sum() + " rate limited=" + stats.rateLimited.sum() + " presence deltas=" + stats.presenceDeltas.sum());
+        System.out.println(String.format("Delivery calls=%d (%.1f messages per call)", stats.deliveries.sum(),
+            stats.received.sum() / (double) Math.max(1, stats.deliveries.sum())));
+
+        for (SimulatedUser user : users) {
+            try {
+                user.leave();
+                if (user.getPushConnections() != null) {
+                    user.getPushConnections().close();
+                } else {
+                    UnicastRemoteObject.unexportObject(user, true);
+                }
+            } catch (Exception e) {
+                System.err.println("Error while leaving with user \"" + user.getUsrName() + "\": " + e.toString());
+            }
+        }
+        System.exit(0);
+    }
+
+    // Room k is picked with a weight of 1 / (k + 1), so the first rooms get most of the users
+    private static int skewedRoom(Random random, int roomCount) {
+        double total = 0;
+        for (int k = 0; k < roomCount; k++) {
+            total += 1.0 / (k + 1);
+        }
+        double target = random.nextDouble() * total;
+        for (int k = 0; k < roomCount; k++) {
+            target -= 1.0 / (k + 1);
+            if (target <= 0) {
+                return k;
+            }
+        }
+        return roomCount - 1;
+    }
+
+    private static int max(int[] values) {
+        int max = 0;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+}
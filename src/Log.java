@@ -0,0 +1,79 @@
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Level gated logging for the server hot paths. Lines are handed to a background thread, so dispatcher and
+// delivery threads never wait on the console; when the queue is full lines are dropped and counted instead.
+// The level is set with -Dchat.log.level=DEBUG|INFO|WARN|ERROR (INFO by default).
+public class Log {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+
+    private static final String[] NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+    private static final int level = parseLevel(System.getProperty("chat.log.level", "INFO"));
+    private static final ArrayBlockingQueue<String> lines = new ArrayBlockingQueue<String>(8192);
+    private static final AtomicLong droppedLines = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        String line = lines.take();
+                        PrintStream out = line.startsWith("WARN") || line.startsWith("ERROR") ? System.err : System.out;
+                        out.println(line);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Check before building an expensive message
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    public static void debug(String message) {
+        log(DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(WARN, message);
+    }
+
+    public static void error(String message) {
+        log(ERROR, message);
+    }
+
+    public static long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    private static void log(int messageLevel, String message) {
+        if (messageLevel < level) {
+            return;
+        }
+        if (!lines.offer(NAMES[messageLevel] + " " + message)) {
+            droppedLines.incrementAndGet();
+        }
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return INFO;
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Map;
+
+// Ordered messages for one recipient. Senders are written as ids, the names travel once per recipient: a batch
+// only defines the ids its recipient has not been sent yet, and the recipient keeps them for the next batches.
+public class MessageBatch implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private ArrayList<Integer> newSenderIds = new ArrayList<Integer>();
+    private ArrayList<String> newSenderNames = new ArrayList<String>();
+    private ArrayList<ChatMessage> messages = new ArrayList<ChatMessage>();
+
+    public MessageBatch() {
+    }
+
+    public void defineSender(int senderId, String senderName) {
+        this.newSenderIds.add(senderId);
+        this.newSenderNames.add(senderName);
+    }
+
+    public void add(ChatMessage message) {
+        this.messages.add(message);
+    }
+
+    // Senders defined by this batch, in the order they were defined
+    public int getSenderCount() {
+        return this.newSenderIds.size();
+    }
+
+    public int getSenderId(int index) {
+        return this.newSenderIds.get(index);
+    }
+
+    public String getSenderName(int index) {
+        return this.newSenderNames.get(index);
+    }
+
+    public int size() {
+        return this.messages.size();
+    }
+
+    public boolean isEmpty() {
+        return this.messages.isEmpty();
+    }
+
+    public ArrayList<ChatMessage> getMessages() {
+        return this.messages;
+    }
+
+    public void clear() {
+        this.newSenderIds.clear();
+        this.newSenderNames.clear();
+        this.messages.clear();
+    }
+
+    // Learns the senders this batch defines and fills in the sender name of every message
+    public ArrayList<ChatMessage> resolve(Map<Integer, String> senderNames) {
+        for (int i = 0; i < this.newSenderIds.size(); i++) {
+            senderNames.put(this.newSenderIds.get(i), this.newSenderNames.get(i));
+        }
+        for (ChatMessage message : this.messages) {
+            message.senderName = senderNames.get(message.senderId);
+        }
+        return this.messages;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        this.writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        this.readFrom(in);
+    }
+
+    // Also used by RoomBatch, which embeds a batch in its own form
+    void writeTo(DataOutput out) throws IOException {
+        this.writeHeadTo(out);
+        for (ChatMessage message : this.messages) {
+            // Shared by every recipient of the message, writing it is only a copy
+            out.write(message.encode());
+        }
+    }
+
+    // Everything in front of the encoded messages: the sender definitions and the message count
+    void writeHeadTo(DataOutput out) throws IOException {
+        out.writeInt(this.newSenderIds.size());
+        for (int i = 0; i < this.newSenderIds.size(); i++) {
+            out.writeInt(this.newSenderIds.get(i));
+            out.writeUTF(this.newSenderNames.get(i));
+        }
+        ChatMessage.writeVarLong(out, this.messages.size());
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        int senders = in.readInt();
+        for (int i = 0; i < senders; i++) {
+            this.newSenderIds.add(in.readInt());
+            this.newSenderNames.add(in.readUTF());
+        }
+        long count = ChatMessage.readVarLong(in);
+        for (long i = 0; i < count; i++) {
+            this.messages.add(ChatMessage.decode(in));
+        }
+    }
+}
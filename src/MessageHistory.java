@@ -0,0 +1,51 @@
+import java.util.ArrayList;
+
+// Fixed capacity ring of the last messages of a room. There is a single writer (the room dispatcher) and any
+// number of readers, readers never lock and never block the writer: they check the sequence number of every
+// slot they read and skip the ones that were overwritten meanwhile.
+public class MessageHistory {
+    private int capacity;
+    // Allocated with the first message, most rooms of a server with many rooms are idle
+    private ChatMessage[] ring;
+    // Sequence number of the newest message in the ring, 0 while empty
+    private volatile long lastSeq = 0;
+
+    MessageHistory(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    public long getLastSeq() {
+        return this.lastSeq;
+    }
+
+    // Only called by the dispatcher, message.seq must be lastSeq + 1
+    public void add(ChatMessage message) {
+        if (this.ring == null) {
+            // Published to readers by the write of lastSeq below
+            this.ring = new ChatMessage[this.capacity];
+        }
+        this.ring[(int) (message.seq % this.ring.length)] = message;
+        this.lastSeq = message.seq;
+    }
+
+    // Returns up to maxMessages messages newer than sinceSeq, oldest first. Messages that already left the ring are
+    // skipped, so the first returned seq tells the caller whether it missed anything.
+    public ArrayList<ChatMessage> getSince(long sinceSeq, int maxMessages) {
+        long last = this.lastSeq;
+        long first = Math.max(sinceSeq + 1, last - this.capacity + 1);
+        ArrayList<ChatMessage> page = new ArrayList<ChatMessage>();
+        if (last == 0) {
+            return page;
+        }
+        for (long seq = Math.max(first, 1); seq <= last && page.size() < maxMessages; seq++) {
+            ChatMessage message = this.ring[(int) (seq % this.ring.length)];
+            if (message == null || message.seq != seq) {
+                // The writer lapped us, this slot now holds a newer message
+                page.clear();
+                continue;
+            }
+            page.add(message);
+        }
+        return page;
+    }
+}
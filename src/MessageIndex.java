@@ -0,0 +1,824 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Inverted index of the messages of one room. The dispatcher only queues the messages it accepted, they are indexed
+// by a shared pool of indexer threads so searching never adds to the fan-out latency.
+//
+// Terms (runs of letters and digits, lower cased) and sender names are hashed to int keys and every key has an
+// ascending list of int doc ids. New messages go to a mutable segment that is frozen into sorted arrays every
+// SEGMENT_SIZE messages, neighbouring frozen segments are merged so there are only about log(n) of them, and the
+// oldest segments are dropped once the room has more than MAX_MESSAGES indexed, or the oldest segment of any room
+// once all of them together have more than MAX_TOTAL_MESSAGES. Hash collisions are weeded out by checking the text
+// of every hit. A journaled room indexes its journal on an indexer thread the first time it is searched.
+public class MessageIndex implements Runnable {
+    // Messages indexed per room, 0 turns search off
+    static final int MAX_MESSAGES = Integer.getInteger("chat.search.maxMessages", 1000000);
+    // Messages indexed by all the rooms of the process together
+    static final long MAX_TOTAL_MESSAGES = Long.getLong("chat.search.maxTotalMessages", 4000000);
+    static final int SEGMENT_SIZE = Integer.getInteger("chat.search.segmentSize", 16384);
+    // Messages waiting for the indexer, beyond that they are not indexed
+    static final int QUEUE_SIZE = Integer.getInteger("chat.search.queueSize", 65536);
+    // Upper bound of the results of a single search
+    static final int MAX_RESULTS = 1000;
+    // How long a search waits for the journal of its room to be indexed, then it searches what is indexed so far
+    static final long BACKFILL_WAIT_MILLIS = Long.getLong("chat.search.backfillWaitMillis", 2000);
+    // Merged segments stay below this size, so dropping the oldest one only loses a fraction of the index
+    private static final int MAX_SEGMENT_SIZE = Math.max(SEGMENT_SIZE, MAX_MESSAGES / 8);
+    // How many queued messages an indexer takes before giving its thread to the next room
+    private static final int INDEX_QUANTUM = 1024;
+
+    private static ExecutorService indexers = Executors.newFixedThreadPool(Integer.getInteger("chat.search.threads", 1),
+        new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "search-indexer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    // Every index not closed yet and the messages they hold together, evictions across rooms hold budgetLock
+    private static Set<MessageIndex> open = ConcurrentHashMap.newKeySet();
+    private static AtomicLong heldTotal = new AtomicLong();
+    private static Object budgetLock = new Object();
+
+    private String roomName;
+    private LinkedBlockingQueue<ChatMessage> pending = new LinkedBlockingQueue<ChatMessage>(QUEUE_SIZE);
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    private volatile boolean compactionNeeded = false;
+    private ChatMetrics metrics = ChatMetrics.getInstance();
+    // Oldest first, replaced as a whole under the index lock so searches can use a snapshot
+    private volatile Segment[] segments = new Segment[0];
+    // Newest messages, guarded by this
+    private SegmentBuilder active = new SegmentBuilder();
+    // Messages in the segments and the active one, guarded by this
+    private long held = 0;
+    // Journal whose messages up to backfillSeq still have to be indexed, guarded by this
+    private MessageJournal backfillJournal;
+    private long backfillSeq;
+    // Indexes the journal on an indexer thread, submitted by the first search, guarded by this
+    private Future<?> backfillTask;
+
+    MessageIndex(String roomName) {
+        this.roomName = roomName;
+        open.add(this);
+    }
+
+    // Messages up to the last one of journal are indexed from it when the room is first searched
+    synchronized void attachJournal(MessageJournal journal) {
+        if (journal.getLastSeq() > 0) {
+            this.backfillJournal = journal;
+            this.backfillSeq = journal.getLastSeq();
+        }
+    }
+
+    // Called by the room dispatcher, in seq order
+    void add(ChatMessage message) {
+        if (!this.pending.offer(message)) {
+            this.metrics.unindexedMessages.increment();
+            return;
+        }
+        this.schedule();
+    }
+
+    void close() {
+        this.closed = true;
+        this.pending.clear();
+        open.remove(this);
+        synchronized (this) {
+            this.segments = new Segment[0];
+            this.active = new SegmentBuilder();
+            this.changeHeld(-this.held);
+            this.backfillJournal = null;
+        }
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            indexers.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<ChatMessage> batch = new ArrayList<ChatMessage>();
+        this.pending.drainTo(batch, INDEX_QUANTUM);
+        if (!batch.isEmpty() && !this.closed) {
+            synchronized (this) {
+                for (ChatMessage message : batch) {
+                    this.active.add(message);
+                    this.changeHeld(1);
+                    if (this.active.size() >= SEGMENT_SIZE) {
+                        this.append(this.active.freeze());
+                        this.active = new SegmentBuilder();
+                    }
+                }
+            }
+            this.metrics.indexedMessages.add(batch.size());
+            enforceTotal();
+        }
+        if (this.compactionNeeded && !this.closed) {
+            this.compactionNeeded = false;
+            this.compact();
+        }
+        this.scheduled.set(false);
+        if (!this.pending.isEmpty() || this.compactionNeeded) {
+            this.schedule();
+        }
+    }
+
+    // Must be called holding the index lock
+    private void append(Segment segment) {
+        Segment[] segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+        segments[segments.length - 1] = segment;
+        this.segments = this.dropOldest(segments);
+        this.compactionNeeded = true;
+    }
+
+    // Must be called holding the index lock, with held already counting the messages of segments
+    private Segment[] dropOldest(Segment[] segments) {
+        int dropped = 0;
+        while (this.held > MAX_MESSAGES && dropped < segments.length) {
+            this.changeHeld(-segments[dropped].size());
+            dropped++;
+        }
+        return dropped > 0 ? Arrays.copyOfRange(segments, dropped, segments.length) : segments;
+    }
+
+    // Must be called holding the index lock
+    private void changeHeld(long delta) {
+        this.held += delta;
+        heldTotal.addAndGet(delta);
+    }
+
+    // Drops the oldest segment of any room until the rooms together hold at most MAX_TOTAL_MESSAGES. The active
+    // segment of a room counts as its oldest when it has no other, so quiet rooms give up their few messages too.
+    // Only run by the indexers.
+    private static void enforceTotal() {
+        if (heldTotal.get() <= MAX_TOTAL_MESSAGES) {
+            return;
+        }
+        synchronized (budgetLock) {
+            while (heldTotal.get() > MAX_TOTAL_MESSAGES) {
+                MessageIndex oldest = null;
+                long oldestTime = Long.MAX_VALUE;
+                for (MessageIndex index : open) {
+                    long time = index.getOldestTimestamp();
+                    if (time < oldestTime) {
+                        oldest = index;
+                        oldestTime = time;
+                    }
+                }
+                if (oldest == null || !oldest.dropOldestSegment()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized long getOldestTimestamp() {
+        if (this.segments.length > 0) {
+            return this.segments[0].minTimestamp;
+        }
+        return this.active.size() > 0 ? this.active.docs.timestamps[0] : Long.MAX_VALUE;
+    }
+
+    private synchronized boolean dropOldestSegment() {
+        Segment[] segments = this.segments;
+        int dropped;
+        if (segments.length > 0) {
+            dropped = segments[0].size();
+            this.segments = Arrays.copyOfRange(segments, 1, segments.length);
+        } else if (this.active.size() > 0) {
+            dropped = this.active.size();
+            this.active = new SegmentBuilder();
+        } else {
+            return false;
+        }
+        this.changeHeld(-dropped);
+        this.metrics.evictedIndexMessages.add(dropped);
+        return true;
+    }
+
+    // Merges neighbouring segments while an older one is not larger than the one after it, like the carries of a
+    // binary counter. Only run by the indexer, merging is done outside the lock and the result swapped in.
+    private void compact() {
+        while (!this.closed) {
+            Segment[] segments = this.segments;
+            int older = -1;
+            for (int i = segments.length - 1; i > 0; i--) {
+                if (segments[i - 1].size() <= segments[i].size()
+                        && segments[i - 1].size() + segments[i].size() <= MAX_SEGMENT_SIZE) {
+                    older = i - 1;
+                    break;
+                }
+            }
+            if (older < 0) {
+                return;
+            }
+            Segment merged = Segment.merge(segments[older], segments[older + 1]);
+            synchronized (this) {
+                // A backfill or a drop may have changed the segments meanwhile, then the pair is looked up again
+                Segment[] current = this.segments;
+                for (int i = 0; i + 1 < current.length; i++) {
+                    if (current[i] == segments[older] && current[i + 1] == segments[older + 1]) {
+                        Segment[] replaced = new Segment[current.length - 1];
+                        System.arraycopy(current, 0, replaced, 0, i);
+                        replaced[i] = merged;
+                        System.arraycopy(current, i + 2, replaced, i + 1, current.length - i - 2);
+                        this.segments = replaced;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // Hands the journal to the indexers the first time the room is searched, null if there never was one
+    private synchronized Future<?> startBackfill() {
+        if (this.backfillJournal != null && this.backfillTask == null) {
+            this.backfillTask = indexers.submit(new Runnable() {
+                public void run() {
+                    backfill();
+                }
+            });
+        }
+        return this.backfillTask;
+    }
+
+    // Run by an indexer once
+    private void backfill() {
+        MessageJournal journal;
+        long upToSeq;
+        synchronized (this) {
+            journal = this.backfillJournal;
+            upToSeq = this.backfillSeq;
+        }
+        if (journal == null) {
+            return;
+        }
+        Backfill backfill = new Backfill();
+        long start = System.nanoTime();
+        try {
+            journal.replay(Math.max(1, upToSeq - MAX_MESSAGES + 1), upToSeq, backfill);
+        } catch (IOException e) {
+            Log.error("Error while indexing the journal of room \"" + this.roomName + "\": " + e.toString());
+        }
+        if (backfill.builder.size() > 0) {
+            backfill.built.add(backfill.builder.freeze());
+        }
+        synchronized (this) {
+            this.backfillJournal = null;
+            if (this.closed) {
+                return;
+            }
+            // Everything in the journal is older than what the dispatcher queued since it was opened
+            Segment[] segments = backfill.built.toArray(new Segment[backfill.built.size() + this.segments.length]);
+            System.arraycopy(this.segments, 0, segments, backfill.built.size(), this.segments.length);
+            this.changeHeld(backfill.count);
+            this.segments = this.dropOldest(segments);
+            this.compactionNeeded = true;
+        }
+        this.metrics.indexedMessages.add(backfill.count);
+        Log.info("Indexed " + backfill.count + " journaled messages of room \"" + this.roomName + "\" in "
+            + (System.nanoTime() - start) / 1000000 + " ms");
+        enforceTotal();
+        this.schedule();
+    }
+
+    // Up to maxResults messages, newest first, containing every term of terms, sent by senderName unless it is null
+    // and accepted between fromTime and toTime (inclusive, in milliseconds since the epoch)
+    public ArrayList<ChatMessage> search(String terms, String senderName, long fromTime, long toTime, int maxResults) {
+        ArrayList<ChatMessage> results = new ArrayList<ChatMessage>();
+        if (this.closed || maxResults <= 0) {
+            return results;
+        }
+        Future<?> backfill = this.startBackfill();
+        if (backfill != null && !backfill.isDone()) {
+            try {
+                backfill.get(BACKFILL_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Searches what is indexed so far, the journal shows up in later searches
+            } catch (ExecutionException e) {
+                Log.error("Error while indexing the journal of room \"" + this.roomName + "\": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Query query = new Query(terms, senderName, fromTime, toTime, maxResults);
+        Segment[] segments;
+        synchronized (this) {
+            this.active.search(query, results);
+            segments = this.segments;
+        }
+        for (int i = segments.length - 1; i >= 0 && results.size() < maxResults; i--) {
+            segments[i].search(query, results);
+        }
+        return results;
+    }
+
+    // Keys of the runs of letters and digits in text, lower cased. Terms receives the terms themselves if not null.
+    static int tokenize(String text, int[] keys, ArrayList<String> terms, int count) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            if (!Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int hash = 0x811c9dc5;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                hash = (hash ^ Character.toLowerCase(text.charAt(i))) * 0x01000193;
+                i++;
+            }
+            if (count == keys.length) {
+                return count;
+            }
+            keys[count++] = mix(hash);
+            if (terms != null) {
+                char[] term = new char[i - start];
+                for (int j = 0; j < term.length; j++) {
+                    term[j] = Character.toLowerCase(text.charAt(start + j));
+                }
+                terms.add(new String(term));
+            }
+        }
+        return count;
+    }
+
+    // Senders get their own key space, collisions with terms are caught like any other
+    static int senderKey(String senderName) {
+        int hash = 0x1b873593;
+        for (int i = 0; i < senderName.length(); i++) {
+            hash = (hash ^ senderName.charAt(i)) * 0x01000193;
+        }
+        return mix(hash);
+    }
+
+    // MurmurHash3 finalizer
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    // Whether text has term (lower case) as a whole run of letters and digits
+    private static boolean containsTerm(String text, String term) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            if (!Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i - start == term.length()) {
+                boolean equal = true;
+                for (int j = 0; j < term.length() && equal; j++) {
+                    equal = Character.toLowerCase(text.charAt(start + j)) == term.charAt(j);
+                }
+                if (equal) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Collects the journal into frozen segments
+    private static class Backfill implements MessageJournal.Visitor {
+        ArrayList<Segment> built = new ArrayList<Segment>();
+        SegmentBuilder builder = new SegmentBuilder();
+        long count = 0;
+
+        public void visit(ChatMessage message) {
+            this.builder.add(message);
+            this.count++;
+            if (this.builder.size() >= SEGMENT_SIZE) {
+                this.built.add(this.builder.freeze());
+                this.builder = new SegmentBuilder();
+            }
+        }
+    }
+
+    static class Query {
+        String[] terms;
+        // Keys of the terms and then of the sender
+        int[] keys;
+        String senderName;
+        long fromTime;
+        long toTime;
+        int maxResults;
+
+        Query(String terms, String senderName, long fromTime, long toTime, int maxResults) {
+            ArrayList<String> words = new ArrayList<String>();
+            // One more for the sender
+            int[] keys = new int[(terms == null ? 0 : terms.length() / 2) + 2];
+            int count = terms == null ? 0 : tokenize(terms, keys, words, 0);
+            if (senderName != null) {
+                keys[count++] = senderKey(senderName);
+            }
+            this.terms = words.toArray(new String[0]);
+            this.keys = Arrays.copyOf(keys, count);
+            this.senderName = senderName;
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+            this.maxResults = maxResults;
+        }
+    }
+
+    // The doc ids of one key in docs[from, to)
+    static class Postings {
+        int[] docs;
+        int from;
+        int to;
+
+        Postings(int[] docs, int from, int to) {
+            this.docs = docs;
+            this.from = from;
+            this.to = to;
+        }
+
+        int size() {
+            return this.to - this.from;
+        }
+    }
+
+    // The messages of a segment in seq order, doc ids are their positions. Texts are UTF-8 in one array.
+    static class Docs {
+        long[] seqs;
+        long[] timestamps;
+        String[] senders;
+        int[] textStarts;
+        byte[] text;
+        int size = 0;
+
+        Docs(int capacity, int textCapacity) {
+            this.seqs = new long[capacity];
+            this.timestamps = new long[capacity];
+            this.senders = new String[capacity];
+            this.textStarts = new int[capacity + 1];
+            this.text = new byte[textCapacity];
+        }
+
+        void add(long seq, long timestamp, String senderName, byte[] msg) {
+            if (this.size == this.seqs.length) {
+                int capacity = Math.max(16, this.size * 2);
+                this.seqs = Arrays.copyOf(this.seqs, capacity);
+                this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+                this.senders = Arrays.copyOf(this.senders, capacity);
+                this.textStarts = Arrays.copyOf(this.textStarts, capacity + 1);
+            }
+            int start = this.textStarts[this.size];
+            if (start + msg.length > this.text.length) {
+                this.text = Arrays.copyOf(this.text, Math.max(start + msg.length, this.text.length * 2));
+            }
+            System.arraycopy(msg, 0, this.text, start, msg.length);
+            this.seqs[this.size] = seq;
+            this.timestamps[this.size] = timestamp;
+            this.senders[this.size] = senderName;
+            this.size++;
+            this.textStarts[this.size] = start + msg.length;
+        }
+
+        // Checks what the postings cannot, the time range and that the hit is not a hash collision
+        boolean matches(int doc, Query query) {
+            long timestamp = this.timestamps[doc];
+            if (timestamp < query.fromTime || timestamp > query.toTime) {
+                return false;
+            }
+            if (query.senderName != null && !query.senderName.equals(this.senders[doc])) {
+                return false;
+            }
+            if (query.terms.length > 0) {
+                String text = this.getText(doc);
+                for (String term : query.terms) {
+                    if (!containsTerm(text, term)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        String getText(int doc) {
+            int start = this.textStarts[doc];
+            return new String(this.text, start, this.textStarts[doc + 1] - start, StandardCharsets.UTF_8);
+        }
+
+        ChatMessage get(int doc) {
+            ChatMessage message = new ChatMessage(this.senders[doc], this.getText(doc));
+            message.seq = this.seqs[doc];
+            message.timestamp = this.timestamps[doc];
+            return message;
+        }
+
+        // Adds the matching docs newest first. Postings is null when a key has no docs, empty to scan every doc.
+        void search(Postings[] postings, Query query, ArrayList<ChatMessage> results) {
+            if (postings == null) {
+                return;
+            }
+            if (postings.length == 0) {
+                for (int doc = this.size - 1; doc >= 0 && results.size() < query.maxResults; doc--) {
+                    if (this.matches(doc, query)) {
+                        results.add(this.get(doc));
+                    }
+                }
+                return;
+            }
+            // Walk the shortest list backwards and look its docs up in the others, whose upper bound only shrinks
+            Arrays.sort(postings, new Comparator<Postings>() {
+                public int compare(Postings a, Postings b) {
+                    return Integer.compare(a.size(), b.size());
+                }
+            });
+            int[] bounds = new int[postings.length];
+            for (int j = 1; j < postings.length; j++) {
+                bounds[j] = postings[j].to;
+            }
+            Postings shortest = postings[0];
+            for (int i = shortest.to - 1; i >= shortest.from && results.size() < query.maxResults; i--) {
+                int doc = shortest.docs[i];
+                boolean inAll = true;
+                for (int j = 1; j < postings.length && inAll; j++) {
+                    int found = Arrays.binarySearch(postings[j].docs, postings[j].from, bounds[j], doc);
+                    inAll = found >= 0;
+                    bounds[j] = found >= 0 ? found : -found - 1;
+                }
+                if (inAll && this.matches(doc, query)) {
+                    results.add(this.get(doc));
+                }
+            }
+        }
+    }
+
+    // The segment new messages are added to, keys are kept in an open addressing table of growing doc lists
+    static class SegmentBuilder {
+        // Small to start with, most rooms never get many messages
+        private Docs docs = new Docs(0, 0);
+        // Slot + 1 of each key, 0 for a free entry
+        private int[] table = new int[16];
+        private int[] slotKeys = new int[8];
+        private int[][] slotDocs = new int[8][];
+        private int[] slotSizes = new int[8];
+        private int slots = 0;
+        private int[] keys = new int[16];
+
+        int size() {
+            return this.docs.size;
+        }
+
+        void add(ChatMessage message) {
+            int doc = this.docs.size;
+            this.docs.add(message.seq, message.timestamp, message.senderName,
+                message.msg.getBytes(StandardCharsets.UTF_8));
+            // Terms are separated by at least one character
+            if (this.keys.length < message.msg.length() / 2 + 1) {
+                this.keys = new int[message.msg.length() / 2 + 1];
+            }
+            int count = tokenize(message.msg, this.keys, null, 0);
+            for (int i = 0; i < count; i++) {
+                this.addPosting(this.keys[i], doc);
+            }
+            if (message.senderName != null) {
+                this.addPosting(senderKey(message.senderName), doc);
+            }
+        }
+
+        private void addPosting(int key, int doc) {
+            int slot = this.slotOf(key, true);
+            int size = this.slotSizes[slot];
+            int[] docs = this.slotDocs[slot];
+            // A term repeated in the same message is only listed once
+            if (size > 0 && docs[size - 1] == doc) {
+                return;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                this.slotDocs[slot] = docs;
+            }
+            docs[size] = doc;
+            this.slotSizes[slot] = size + 1;
+        }
+
+        private int slotOf(int key, boolean create) {
+            int mask = this.table.length - 1;
+            for (int i = key & mask; ; i = (i + 1) & mask) {
+                int entry = this.table[i];
+                if (entry == 0) {
+                    if (!create) {
+                        return -1;
+                    }
+                    int slot = this.newSlot(key);
+                    this.table[i] = slot + 1;
+                    if (this.slots * 2 > this.table.length) {
+                        this.rehash();
+                    }
+                    return slot;
+                }
+                if (this.slotKeys[entry - 1] == key) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        private int newSlot(int key) {
+            if (this.slots == this.slotKeys.length) {
+                int capacity = this.slots * 2;
+                this.slotKeys = Arrays.copyOf(this.slotKeys, capacity);
+                this.slotDocs = Arrays.copyOf(this.slotDocs, capacity);
+                this.slotSizes = Arrays.copyOf(this.slotSizes, capacity);
+            }
+            this.slotKeys[this.slots] = key;
+            this.slotDocs[this.slots] = new int[2];
+            return this.slots++;
+        }
+
+        private void rehash() {
+            this.table = new int[this.table.length * 2];
+            int mask = this.table.length - 1;
+            for (int slot = 0; slot < this.slots; slot++) {
+                int i = this.slotKeys[slot] & mask;
+                while (this.table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                this.table[i] = slot + 1;
+            }
+        }
+
+        void search(Query query, ArrayList<ChatMessage> results) {
+            Postings[] postings = new Postings[query.keys.length];
+            for (int i = 0; i < postings.length; i++) {
+                int slot = this.slotOf(query.keys[i], false);
+                if (slot < 0) {
+                    return;
+                }
+                postings[i] = new Postings(this.slotDocs[slot], 0, this.slotSizes[slot]);
+            }
+            this.docs.search(postings, query, results);
+        }
+
+        // Sorts the keys and packs every list into one array
+        Segment freeze() {
+            long[] order = new long[this.slots];
+            int total = 0;
+            for (int slot = 0; slot < this.slots; slot++) {
+                order[slot] = (long) this.slotKeys[slot] << 32 | slot;
+                total += this.slotSizes[slot];
+            }
+            Arrays.sort(order);
+            int[] keys = new int[this.slots];
+            int[] starts = new int[this.slots + 1];
+            int[] postings = new int[total];
+            int position = 0;
+            for (int i = 0; i < order.length; i++) {
+                int slot = (int) order[i];
+                keys[i] = (int) (order[i] >> 32);
+                starts[i] = position;
+                System.arraycopy(this.slotDocs[slot], 0, postings, position, this.slotSizes[slot]);
+                position += this.slotSizes[slot];
+            }
+            starts[order.length] = position;
+            return new Segment(trim(this.docs), keys, starts, postings);
+        }
+
+        private static Docs trim(Docs docs) {
+            Docs trimmed = new Docs(0, 0);
+            trimmed.seqs = Arrays.copyOf(docs.seqs, docs.size);
+            trimmed.timestamps = Arrays.copyOf(docs.timestamps, docs.size);
+            trimmed.senders = Arrays.copyOf(docs.senders, docs.size);
+            trimmed.textStarts = Arrays.copyOf(docs.textStarts, docs.size + 1);
+            trimmed.text = Arrays.copyOf(docs.text, docs.textStarts[docs.size]);
+            trimmed.size = docs.size;
+            return trimmed;
+        }
+    }
+
+    // Immutable segment: sorted keys, where each key's docs start in postings and the docs of all keys
+    static class Segment {
+        private Docs docs;
+        private int[] keys;
+        private int[] starts;
+        private int[] postings;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        Segment(Docs docs, int[] keys, int[] starts, int[] postings) {
+            this.docs = docs;
+            this.keys = keys;
+            this.starts = starts;
+            this.postings = postings;
+            for (int doc = 0; doc < docs.size; doc++) {
+                this.minTimestamp = Math.min(this.minTimestamp, docs.timestamps[doc]);
+                this.maxTimestamp = Math.max(this.maxTimestamp, docs.timestamps[doc]);
+            }
+        }
+
+        int size() {
+            return this.docs.size;
+        }
+
+        void search(Query query, ArrayList<ChatMessage> results) {
+            if (this.maxTimestamp < query.fromTime || this.minTimestamp > query.toTime) {
+                return;
+            }
+            Postings[] postings = new Postings[query.keys.length];
+            for (int i = 0; i < postings.length; i++) {
+                int index = Arrays.binarySearch(this.keys, query.keys[i]);
+                if (index < 0) {
+                    return;
+                }
+                postings[i] = new Postings(this.postings, this.starts[index], this.starts[index + 1]);
+            }
+            this.docs.search(postings, query, results);
+        }
+
+        // Older comes right before newer, so the docs of newer are appended with their ids shifted
+        static Segment merge(Segment older, Segment newer) {
+            Docs docs = new Docs(0, 0);
+            int shift = older.docs.size;
+            docs.size = shift + newer.docs.size;
+            docs.seqs = concat(older.docs.seqs, newer.docs.seqs);
+            docs.timestamps = concat(older.docs.timestamps, newer.docs.timestamps);
+            docs.senders = Arrays.copyOf(older.docs.senders, docs.size);
+            System.arraycopy(newer.docs.senders, 0, docs.senders, shift, newer.docs.size);
+            int textShift = older.docs.text.length;
+            docs.text = Arrays.copyOf(older.docs.text, textShift + newer.docs.text.length);
+            System.arraycopy(newer.docs.text, 0, docs.text, textShift, newer.docs.text.length);
+            docs.textStarts = Arrays.copyOf(older.docs.textStarts, docs.size + 1);
+            for (int doc = 0; doc <= newer.docs.size; doc++) {
+                docs.textStarts[shift + doc] = newer.docs.textStarts[doc] + textShift;
+            }
+
+            int[] keys = new int[older.keys.length + newer.keys.length];
+            int[] starts = new int[keys.length + 1];
+            int[] postings = new int[older.postings.length + newer.postings.length];
+            int count = 0;
+            int position = 0;
+            int i = 0;
+            int j = 0;
+            while (i < older.keys.length || j < newer.keys.length) {
+                int key;
+                boolean fromOlder;
+                boolean fromNewer;
+                if (j == newer.keys.length || (i < older.keys.length && older.keys[i] < newer.keys[j])) {
+                    key = older.keys[i];
+                    fromOlder = true;
+                    fromNewer = false;
+                } else if (i == older.keys.length || newer.keys[j] < older.keys[i]) {
+                    key = newer.keys[j];
+                    fromOlder = false;
+                    fromNewer = true;
+                } else {
+                    key = older.keys[i];
+                    fromOlder = true;
+                    fromNewer = true;
+                }
+                keys[count] = key;
+                starts[count] = position;
+                count++;
+                if (fromOlder) {
+                    int length = older.starts[i + 1] - older.starts[i];
+                    System.arraycopy(older.postings, older.starts[i], postings, position, length);
+                    position += length;
+                    i++;
+                }
+                if (fromNewer) {
+                    for (int k = newer.starts[j]; k < newer.starts[j + 1]; k++) {
+                        postings[position++] = newer.postings[k] + shift;
+                    }
+                    j++;
+                }
+            }
+            starts[count] = position;
+            return new Segment(docs, Arrays.copyOf(keys, count), Arrays.copyOf(starts, count + 1), postings);
+        }
+
+        private static long[] concat(long[] a, long[] b) {
+            long[] result = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, result, a.length, b.length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Append-only journal of the messages of one room, kept in <dir>/<encoded room name>/<first seq>.seg files.
+// Segments are memory mapped, append only copies into the mapping and flush() forces the dirty pages to disk,
+// so the dispatcher never waits for an fsync (group commit is done by whoever calls flush periodically). A segment
+// starts small and is mapped again twice as large whenever it fills up, until it reaches SEGMENT_SIZE, so the many
+// quiet rooms of a server only map a little each.
+//
+// Record layout: int length, int crc32, long seq, long timestamp, int senderLength, sender, int msgLength, msg
+// where length and crc32 cover everything after the crc and a zero length marks the end of the segment.
+public class MessageJournal {
+    static final int SEGMENT_SIZE = Integer.getInteger("chat.journal.segmentSize", 64 * 1024 * 1024);
+    static final int INITIAL_SEGMENT_SIZE = Math.min(SEGMENT_SIZE,
+        Integer.getInteger("chat.journal.initialSegmentSize", 64 * 1024));
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 8;
+
+    private String roomName;
+    private File roomDir;
+    private volatile MappedByteBuffer current;
+    // File of the current segment, only touched by the dispatcher
+    private File currentFile;
+    // Segments that were rolled over but not forced yet
+    private ArrayList<MappedByteBuffer> unflushed = new ArrayList<MappedByteBuffer>();
+    private volatile boolean dirty = false;
+    private long lastSeq = 0;
+    private ArrayList<ChatMessage> recovered = new ArrayList<ChatMessage>();
+    private CRC32 crc = new CRC32();
+
+    private MessageJournal(String roomName, File roomDir) {
+        this.roomName = roomName;
+        this.roomDir = roomDir;
+    }
+
+    // Opens the journal of a room, creating it if needed, and remembers its last recentCount messages
+    public static MessageJournal open(File dir, String roomName, int recentCount) throws IOException {
+        File roomDir = new File(dir, encodeRoomName(roomName));
+        if (!roomDir.isDirectory() && !roomDir.mkdirs()) {
+            throw new IOException("Could not create journal directory " + roomDir);
+        }
+        MessageJournal journal = new MessageJournal(roomName, roomDir);
+        journal.recover(recentCount);
+        return journal;
+    }
+
+    // Names of the rooms that have a journal in dir
+    public static ArrayList<String> listRooms(File dir) {
+        ArrayList<String> rooms = new ArrayList<String>();
+        File[] roomDirs = dir.listFiles();
+        if (roomDirs == null) {
+            return rooms;
+        }
+        for (File roomDir : roomDirs) {
+            if (roomDir.isDirectory()) {
+                rooms.add(decodeRoomName(roomDir.getName()));
+            }
+        }
+        return rooms;
+    }
+
+    public String getRoomName() {
+        return this.roomName;
+    }
+
+    public long getLastSeq() {
+        return this.lastSeq;
+    }
+
+    // The newest messages found when the journal was opened, oldest first
+    public ArrayList<ChatMessage> getRecovered() {
+        return this.recovered;
+    }
+
+    // Only called by the room dispatcher, messages must come in seq order
+    public void append(ChatMessage message) throws IOException {
+        byte[] sender = message.senderName == null ? null : message.senderName.getBytes(StandardCharsets.UTF_8);
+        byte[] msg = message.msg.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 8 + 4 + (sender == null ? 0 : sender.length) + 4 + msg.length;
+        if (HEADER_SIZE + length + 4 > SEGMENT_SIZE) {
+            throw new IOException("Message " + message.seq + " does not fit in a journal segment");
+        }
+
+        MappedByteBuffer buffer = this.current;
+        // Keep room for the zero length that terminates the segment
+        int needed = HEADER_SIZE + length + 4;
+        if (buffer.remaining() < needed) {
+            buffer = buffer.position() + needed <= SEGMENT_SIZE
+                ? this.grow(buffer, buffer.position() + needed) : this.roll(message.seq, needed);
+        }
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.putLong(message.seq);
+        buffer.putLong(message.timestamp);
+        if (sender == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(sender.length);
+            buffer.put(sender);
+        }
+        buffer.putInt(msg.length);
+        buffer.put(msg);
+        int end = buffer.position();
+
+        this.crc.reset();
+        this.crc.update(buffer.duplicate().position(start + HEADER_SIZE).limit(end));
+        buffer.putInt(start + 4, (int) this.crc.getValue());
+        // The length goes last so a reader never sees a record that is only partly written
+        buffer.putInt(start, length);
+        this.lastSeq = message.seq;
+        this.dirty = true;
+    }
+
+    // Passes the messages with fromSeq <= seq <= toSeq to visitor in seq order, safe to call from any thread while
+    // the dispatcher appends as long as toSeq was already appended. Reads its own mappings of the segments.
+    public void replay(long fromSeq, long toSeq, Visitor visitor) throws IOException {
+        File[] segments = this.roomDir.listFiles();
+        ArrayList<File> files = new ArrayList<File>();
+        if (segments != null) {
+            for (File segment : segments) {
+                if (segment.getName().endsWith(SEGMENT_SUFFIX)) {
+                    files.add(segment);
+                }
+            }
+        }
+        File[] sorted = files.toArray(new File[0]);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            // Skip the segments that end before fromSeq, the next one starts right after them
+            if (i + 1 < sorted.length && firstSeqOf(sorted[i + 1]) <= fromSeq) {
+                continue;
+            }
+            if (firstSeqOf(sorted[i]) > toSeq) {
+                break;
+            }
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(sorted[i].toPath(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int position = 0;
+            while (position + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || length > buffer.capacity() - position - HEADER_SIZE) {
+                    break;
+                }
+                // Records up to toSeq were checked when the journal was opened or appended since
+                ByteBufferReader reader = new ByteBufferReader(buffer, position + HEADER_SIZE);
+                long seq = reader.getLong();
+                if (seq > toSeq) {
+                    return;
+                }
+                if (seq >= fromSeq) {
+                    long timestamp = reader.getLong();
+                    ChatMessage message = new ChatMessage(reader.getString(), reader.getString());
+                    message.seq = seq;
+                    message.timestamp = timestamp;
+                    visitor.visit(message);
+                }
+                position += HEADER_SIZE + length;
+            }
+        }
+    }
+
+    // Forces everything appended so far to disk, safe to call from any thread while the dispatcher appends
+    public void flush() {
+        ArrayList<MappedByteBuffer> rolled;
+        synchronized (this) {
+            rolled = new ArrayList<MappedByteBuffer>(this.unflushed);
+            this.unflushed.clear();
+        }
+        for (MappedByteBuffer buffer : rolled) {
+            buffer.force();
+        }
+        if (this.dirty) {
+            this.dirty = false;
+            this.current.force();
+        }
+    }
+
+    // Removes the journal of a room that was closed for good
+    public void delete() {
+        synchronized (this) {
+            this.unflushed.clear();
+        }
+        File[] segments = this.roomDir.listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+        this.roomDir.delete();
+    }
+
+    private MappedByteBuffer roll(long firstSeq, int minSize) throws IOException {
+        File file = this.segmentFile(firstSeq);
+        MappedByteBuffer next = map(file, Math.max(minSize, INITIAL_SEGMENT_SIZE));
+        this.replaceCurrent(next, file);
+        return next;
+    }
+
+    // Maps the current segment again, twice as large or at least minSize bytes, up to SEGMENT_SIZE
+    private MappedByteBuffer grow(MappedByteBuffer buffer, int minSize) throws IOException {
+        MappedByteBuffer next = map(this.currentFile, Math.min(SEGMENT_SIZE, Math.max(minSize, buffer.capacity() * 2)));
+        next.position(buffer.position());
+        this.replaceCurrent(next, this.currentFile);
+        return next;
+    }
+
+    private void replaceCurrent(MappedByteBuffer next, File file) {
+        synchronized (this) {
+            if (this.current != null) {
+                this.unflushed.add(this.current);
+            }
+            this.current = next;
+        }
+        this.currentFile = file;
+    }
+
+    // Scans segments from the newest backwards until recentCount messages were seen, so opening a large journal
+    // only reads its tail. The write position is the end of the last valid record of the newest segment.
+    private void recover(int recentCount) throws IOException {
+        File[] segments = this.roomDir.listFiles();
+        ArrayList<File> files = new ArrayList<File>();
+        if (segments != null) {
+            for (File segment : segments) {
+                if (segment.getName().endsWith(SEGMENT_SUFFIX)) {
+                    files.add(segment);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            this.roll(1, 0);
+            return;
+        }
+        File[] sorted = files.toArray(new File[0]);
+        Arrays.sort(sorted);
+
+        ArrayDeque<ChatMessage> recent = new ArrayDeque<ChatMessage>();
+        File newest = sorted[sorted.length - 1];
+        MappedByteBuffer buffer = map(newest, INITIAL_SEGMENT_SIZE);
+        this.lastSeq = firstSeqOf(newest) - 1;
+        ArrayList<ChatMessage> tail = new ArrayList<ChatMessage>();
+        this.lastSeq = this.scan(buffer, this.lastSeq, tail, recentCount);
+        truncate(buffer);
+        this.current = buffer;
+        this.currentFile = newest;
+        prepend(recent, tail, recentCount);
+
+        for (int i = sorted.length - 2; i >= 0 && recent.size() < recentCount; i--) {
+            ArrayList<ChatMessage> older = new ArrayList<ChatMessage>();
+            this.scan(map(sorted[i], 0), firstSeqOf(sorted[i]) - 1, older, recentCount - recent.size());
+            prepend(recent, older, recentCount);
+        }
+        this.recovered = new ArrayList<ChatMessage>(recent);
+        Log.debug("Recovered room \"" + this.roomName + "\" up to message " + this.lastSeq);
+    }
+
+    // Reads records until the end marker or the first torn record, keeping the last keep messages in messages.
+    // Leaves the buffer positioned after the last valid record and returns its seq.
+    private long scan(MappedByteBuffer buffer, long previousSeq, ArrayList<ChatMessage> messages, int keep) {
+        ArrayDeque<ChatMessage> kept = new ArrayDeque<ChatMessage>();
+        buffer.position(0);
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length <= 0 || length > buffer.capacity() - start - HEADER_SIZE) {
+                break;
+            }
+            this.crc.reset();
+            this.crc.update(buffer.duplicate().position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length));
+            if ((int) this.crc.getValue() != buffer.getInt(start + 4)) {
+                break;
+            }
+            ByteBufferReader reader = new ByteBufferReader(buffer, start + HEADER_SIZE);
+            long seq = reader.getLong();
+            if (seq != previousSeq + 1) {
+                // Left over from before a crash, the journal is only valid up to here
+                break;
+            }
+            long timestamp = reader.getLong();
+            String sender = reader.getString();
+            String msg = reader.getString();
+            previousSeq = seq;
+            if (keep > 0) {
+                ChatMessage message = new ChatMessage(sender, msg);
+                message.seq = seq;
+                message.timestamp = timestamp;
+                if (kept.size() == keep) {
+                    kept.removeFirst();
+                }
+                kept.addLast(message);
+            }
+            buffer.position(start + HEADER_SIZE + length);
+        }
+        messages.addAll(kept);
+        return previousSeq;
+    }
+
+    // Clears whatever follows the last valid record so a later recovery cannot mistake it for a record
+    private static void truncate(MappedByteBuffer buffer) {
+        int position = buffer.position();
+        if (buffer.remaining() >= 4 && buffer.getInt(position) != 0) {
+            byte[] zeros = new byte[Math.min(buffer.remaining(), 64 * 1024)];
+            ByteBuffer tail = buffer.duplicate();
+            while (tail.hasRemaining()) {
+                tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+            }
+            buffer.force();
+        }
+    }
+
+    private static void prepend(ArrayDeque<ChatMessage> recent, ArrayList<ChatMessage> older, int recentCount) {
+        for (int i = older.size() - 1; i >= 0 && recent.size() < recentCount; i--) {
+            recent.addFirst(older.get(i));
+        }
+    }
+
+    private File segmentFile(long firstSeq) {
+        return new File(this.roomDir, String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+    }
+
+    private static long firstSeqOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Maps the whole file, extending it with zeros to minSize bytes if it is shorter
+    private static MappedByteBuffer map(File file, int minSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), minSize));
+        }
+    }
+
+    private static String encodeRoomName(String roomName) {
+        try {
+            // Dots are escaped too so that no room can be called "." or ".."
+            return URLEncoder.encode(roomName, "UTF-8").replace(".", "%2E");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decodeRoomName(String dirName) {
+        try {
+            return URLDecoder.decode(dirName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Receives the messages of replay
+    public interface Visitor {
+        void visit(ChatMessage message);
+    }
+
+    // Absolute reads of a record, so scanning does not move the position of the mapped buffer
+    private static class ByteBufferReader {
+        private MappedByteBuffer buffer;
+        private int position;
+
+        ByteBufferReader(MappedByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        long getLong() {
+            long value = this.buffer.getLong(this.position);
+            this.position += 8;
+            return value;
+        }
+
+        String getString() {
+            int length = this.buffer.getInt(this.position);
+            this.position += 4;
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            this.buffer.get(this.position, bytes);
+            this.position += length;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.Timer;
+
+// Message pane of UserChat. Deliveries only queue their lines, from any thread, and a Swing timer moves what was
+// queued into the list once per frame, so a busy room costs one model update per frame instead of one text area
+// append per message. The list keeps the last -Dchat.client.scrollback lines (5000) and only renders the visible
+// ones; when more lines are queued than it can keep, the oldest are skipped without being shown.
+public class MessageView {
+    static final int SCROLLBACK = Integer.getInteger("chat.client.scrollback", 5000);
+    private static final int FRAME_MILLIS = 33;
+    // String lines to append or List<String> history to put above everything else
+    private ConcurrentLinkedQueue<Object> incoming = new ConcurrentLinkedQueue<Object>();
+    private AtomicInteger queuedLines = new AtomicInteger();
+    private long skippedLines = 0;
+    private ScrollbackModel model = new ScrollbackModel(SCROLLBACK);
+    private JList<String> list = new JList<String>(this.model);
+    private JScrollPane scrollPane = new JScrollPane(this.list);
+    private JLabel backlogLabel = new JLabel(" ");
+    private JPanel panel = new JPanel(new BorderLayout());
+    private Timer timer;
+
+    public MessageView() {
+        // A fixed cell size lets the list lay out without measuring every line, longer lines end in "..."
+        this.list.setPrototypeCellValue(String.format("%96s", ""));
+        this.panel.add(this.scrollPane, BorderLayout.CENTER);
+        this.panel.add(this.backlogLabel, BorderLayout.PAGE_END);
+        this.timer = new Timer(FRAME_MILLIS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                drain();
+            }
+        });
+        this.timer.start();
+    }
+
+    // Stops refreshing a view that is no longer shown
+    public void dispose() {
+        this.timer.stop();
+    }
+
+    public JPanel getComponent() {
+        return this.panel;
+    }
+
+    public void append(String line) {
+        this.incoming.add(line);
+        this.queuedLines.incrementAndGet();
+    }
+
+    // Lines that were said before the ones appended so far, shown above them
+    public void prepend(List<String> lines) {
+        this.incoming.add(lines);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        JScrollBar scrollBar = this.scrollPane.getVerticalScrollBar();
+        boolean atBottom = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum();
+        int skip = Math.max(0, this.queuedLines.get() - SCROLLBACK);
+        ArrayList<String> lines = new ArrayList<String>();
+        Object entry;
+        while ((entry = this.incoming.poll()) != null) {
+            if (entry instanceof String) {
+                this.queuedLines.decrementAndGet();
+                if (skip > 0) {
+                    skip--;
+                    this.skippedLines++;
+                } else {
+                    lines.add((String) entry);
+                }
+            } else {
+                this.model.addAll(lines);
+                lines.clear();
+                this.model.prepend((List<String>) entry);
+            }
+        }
+        this.model.addAll(lines);
+
+        int backlog = this.queuedLines.get();
+        this.backlogLabel.setText(backlog == 0 && this.skippedLines == 0 ? " "
+            : backlog + " messages waiting, " + this.skippedLines + " skipped");
+        if (atBottom && !lines.isEmpty()) {
+            this.list.ensureIndexIsVisible(this.model.getSize() - 1);
+        }
+    }
+
+    // Ring buffer of the newest lines, the oldest are dropped once it is full
+    private static class ScrollbackModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+
+        private String[] lines;
+        private int head = 0;
+        private int size = 0;
+
+        ScrollbackModel(int capacity) {
+            this.lines = new String[capacity];
+        }
+
+        @Override
+        public int getSize() {
+            return this.size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return this.lines[(this.head + index) % this.lines.length];
+        }
+
+        void addAll(List<String> added) {
+            if (added.isEmpty()) {
+                return;
+            }
+            int capacity = this.lines.length;
+            int first = Math.max(0, added.size() - capacity);
+            int count = added.size() - first;
+            int evicted = Math.max(0, this.size + count - capacity);
+            if (evicted > 0) {
+                this.head = (this.head + evicted) % capacity;
+                this.size -= evicted;
+                this.fireIntervalRemoved(this, 0, evicted - 1);
+            }
+            int start = this.size;
+            for (int i = first; i < added.size(); i++) {
+                this.lines[(this.head + this.size) % capacity] = added.get(i);
+                this.size++;
+            }
+            this.fireIntervalAdded(this, start, this.size - 1);
+        }
+
+        // Only fills the free room, the lines already shown are newer and are kept
+        void prepend(List<String> added) {
+            int capacity = this.lines.length;
+            int count = Math.min(added.size(), capacity - this.size);
+            if (count == 0) {
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                this.head = (this.head - 1 + capacity) % capacity;
+                this.lines[this.head] = added.get(added.size() - 1 - i);
+            }
+            this.size += count;
+            this.fireIntervalAdded(this, 0, count - 1);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// Client side of the NIO transport: holds the push connection of one UserChat and turns the frames the server sends
+// back into deliverBatch, deliverRoomBatch, deliverMsg, deliverPresence and deliverRooms calls on it. Consecutive
+// MESSAGE frames that are already buffered are handed over as one batch.
+public class NioPushClient implements Runnable {
+    private SocketChannel channel;
+    private DataInputStream in;
+    private IUserChat target;
+    private volatile boolean connected = true;
+
+    private NioPushClient(SocketChannel channel, IUserChat target) throws IOException {
+        this.channel = channel;
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        this.target = target;
+    }
+
+    // Connects and waits until the server registered the session, so joinRoom can be called right after
+    public static NioPushClient connect(String host, int port, long token, IUserChat target) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        ByteBuffer hello = ByteBuffer.allocate(8);
+        hello.putLong(token);
+        hello.flip();
+        while (hello.hasRemaining()) {
+            channel.write(hello);
+        }
+
+        NioPushClient client = new NioPushClient(channel, target);
+        int length = client.in.readInt();
+        if (length != 1 || client.in.readByte() != NioPushServer.FRAME_ACK) {
+            channel.close();
+            throw new IOException("Unexpected answer to the NIO hello");
+        }
+        Thread thread = new Thread(client, "nio-push-client");
+        thread.setDaemon(true);
+        thread.start();
+        return client;
+    }
+
+    // False once the push connection was lost or closed
+    public boolean isConnected() {
+        return this.connected;
+    }
+
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    @Override
+    public void run() {
+        MessageBatch batch = new MessageBatch();
+        try {
+            while (true) {
+                int length = this.in.readInt();
+                byte type = this.in.readByte();
+                if (type == NioPushServer.FRAME_SENDER) {
+                    // A sender id may be given to someone else between two batches, the messages read so far use
+                    // the old name
+                    if (!batch.isEmpty()) {
+                        this.flush(batch);
+                    }
+                    int senderId = this.in.readInt();
+                    batch.defineSender(senderId, this.readUTF());
+                } else if (type == NioPushServer.FRAME_MESSAGE) {
+                    batch.add(ChatMessage.decode(this.in));
+                } else if (type == NioPushServer.FRAME_TEXT) {
+                    this.flush(batch);
+                    boolean hasSender = this.in.readBoolean();
+                    String senderName = this.readUTF();
+                    this.target.deliverMsg(hasSender ? senderName : null, this.readUTF());
+                } else if (type == NioPushServer.FRAME_ROOM_BATCH) {
+                    this.flush(batch);
+                    RoomBatch roomBatch = new RoomBatch();
+                    roomBatch.readFrom(this.in);
+                    this.target.deliverRoomBatch(roomBatch);
+                } else if (type == NioPushServer.FRAME_PRESENCE) {
+                    this.flush(batch);
+                    PresenceDelta delta = new PresenceDelta(this.readUTF());
+                    int count = this.in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        byte change = this.in.readByte();
+                        delta.put(this.readUTF(), change);
+                    }
+                    this.target.deliverPresence(delta);
+                } else if (type == NioPushServer.FRAME_ROOMS) {
+                    this.flush(batch);
+                    RoomDirectoryDelta delta = new RoomDirectoryDelta(this.in.readLong(), this.in.readLong());
+                    int count = this.in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        boolean created = this.in.readBoolean();
+                        delta.put(this.readUTF(), created);
+                    }
+                    this.target.deliverRooms(delta);
+                } else {
+                    this.in.skipBytes(length - 1);
+                }
+                // Deliver once we caught up with what the server has sent so far
+                if (this.in.available() == 0) {
+                    this.flush(batch);
+                }
+            }
+        } catch (EOFException e) {
+            System.out.println("NIO push connection closed by the server");
+        } catch (IOException e) {
+            if (this.channel.isOpen()) {
+                System.err.println("NIO push connection error: " + e.toString());
+            }
+        } finally {
+            this.connected = false;
+        }
+    }
+
+    private void flush(MessageBatch batch) throws IOException {
+        if (batch.isEmpty() && batch.getSenderCount() == 0) {
+            return;
+        }
+        // The target is done with the batch when deliverBatch returns, so it is reused for the next frames
+        this.target.deliverBatch(batch);
+        batch.clear();
+    }
+
+    private String readUTF() throws IOException {
+        byte[] bytes = new byte[this.in.readInt()];
+        this.in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+
+// The push connections of one NIO client, all under the same session token: the one to the directory, made first,
+// and one to every room host whose rooms the client joins, made before joining the first of them. Rooms whose
+// handle has no push address are served by the directory.
+public class NioPushConnections {
+    private long token;
+    private IUserChat target;
+    private NioPushClient directory;
+    // By push address, guarded by this
+    private HashMap<String, NioPushClient> hosts = new HashMap<String, NioPushClient>();
+
+    private NioPushConnections(long token, IUserChat target, NioPushClient directory) {
+        this.token = token;
+        this.target = target;
+        this.directory = directory;
+    }
+
+    // Connects to the directory with a new session token
+    public static NioPushConnections connect(String host, int port, long token, IUserChat target) throws IOException {
+        return new NioPushConnections(token, target, NioPushClient.connect(host, port, token, target));
+    }
+
+    // What to join rooms with, deliveries to it go to whichever of our connections reaches the room's process
+    public NioUserRef getUserRef() {
+        return new NioUserRef(this.token);
+    }
+
+    // Makes sure the process hosting room can push to us, connecting to it again if an earlier connection was lost
+    public void connectTo(IRoomChat room) throws RemoteException {
+        String address = room instanceof RoomHandle ? ((RoomHandle) room).getPushAddress() : null;
+        if (address == null) {
+            return;
+        }
+        synchronized (this) {
+            NioPushClient client = this.hosts.get(address);
+            if (client != null && client.isConnected()) {
+                return;
+            }
+            int colon = address.lastIndexOf(':');
+            try {
+                client = NioPushClient.connect(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)),
+                    this.token, this.target);
+            } catch (IOException e) {
+                throw new ConnectException("Error while connecting to the NIO transport at " + address, e);
+            }
+            this.hosts.put(address, client);
+        }
+    }
+
+    // False once the connection to the directory was lost, lost host connections are made again by connectTo
+    public boolean isConnected() {
+        return this.directory.isConnected();
+    }
+
+    public synchronized void close() {
+        this.directory.close();
+        for (NioPushClient client : this.hosts.values()) {
+            client.close();
+        }
+        this.hosts.clear();
+    }
+}
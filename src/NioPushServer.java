@@ -0,0 +1,392 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Alternative delivery transport: clients keep one TCP connection open and the server pushes length prefixed frames
+// to it from a single selector thread. Requests still go through RMI, a client joins a room with a NioUserRef that
+// names its connection, and deliveries to that reference only queue frames for the selector to write.
+//
+// Frames are an int length followed by a type byte and its body, where UTF is an int length and the UTF-8 bytes:
+// ACK (empty), sent once the hello (8 byte session token) of a client was registered
+// SENDER int senderId, UTF senderName
+// MESSAGE the ChatMessage.encode() bytes, shared by every connection the message goes to
+// TEXT boolean hasSender, UTF senderName, UTF msg, for deliverMsg
+// PRESENCE UTF roomName, int count, then count times byte change and UTF usrName, for deliverPresence
+// ROOMS long fromVersion, long version, int count, then count times boolean created and UTF roomName, for deliverRooms
+// ROOM_BATCH the RoomBatch written by RoomBatch.writeTo, for deliverRoomBatch
+public class NioPushServer implements Runnable {
+    static final byte FRAME_ACK = 0;
+    static final byte FRAME_SENDER = 1;
+    static final byte FRAME_MESSAGE = 2;
+    static final byte FRAME_TEXT = 3;
+    static final byte FRAME_PRESENCE = 4;
+    static final byte FRAME_ROOMS = 5;
+    static final byte FRAME_ROOM_BATCH = 6;
+    // Connections further behind than this are reported as failed deliveries and end up evicted
+    static final long MAX_PENDING_BYTES = Long.getLong("chat.nio.maxPendingBytes", 4 * 1024 * 1024);
+    private static final int MAX_GATHER = 64;
+
+    private static volatile NioPushServer instance;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+    // Sessions that got frames since the selector last looked at them
+    private ConcurrentLinkedQueue<Session> writeRequests = new ConcurrentLinkedQueue<Session>();
+    private AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    private NioPushServer(int port) throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), 1024);
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public static NioPushServer start(int port) throws IOException {
+        NioPushServer server = new NioPushServer(port);
+        instance = server;
+        Thread thread = new Thread(server, "nio-push");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("NIO push transport listening on port: " + server.getPort());
+        return server;
+    }
+
+    // The port actually listened on, start may have been given 0 for any free one
+    public int getPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    // Null when the server was started with RMI delivery only
+    public static NioPushServer getInstance() {
+        return instance;
+    }
+
+    public Session getSession(long token) {
+        return this.sessions.get(token);
+    }
+
+    public int getSessionCount() {
+        return this.sessions.size();
+    }
+
+    @Override
+    public void run() {
+        while (this.selector.isOpen()) {
+            try {
+                this.selector.select();
+                this.wakeupPending.set(false);
+                Session session;
+                while ((session = this.writeRequests.poll()) != null) {
+                    session.writeRequested.set(false);
+                    if (!session.closed) {
+                        session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        this.handle(key);
+                    } catch (IOException e) {
+                        this.close(key);
+                    } catch (RuntimeException e) {
+                        // A bug in one session must not stop pushes to all the others
+                        System.err.println("Error while serving NIO push session: " + e.toString());
+                        this.close(key);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("NIO push transport error: " + e.toString());
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            SocketChannel channel = this.serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(this.selector, SelectionKey.OP_READ, ByteBuffer.allocate(8));
+            }
+            return;
+        }
+        if (key.isReadable()) {
+            this.read(key);
+        }
+        if (key.isValid() && key.isWritable()) {
+            Session session = (Session) key.attachment();
+            if (session.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+                // A frame may have been queued after flush looked at the queue
+                if (!session.outbound.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    // The only thing a client ever sends is its hello, after that a read just detects the disconnect
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (key.attachment() instanceof Session) {
+            ByteBuffer discard = ByteBuffer.allocate(64);
+            if (channel.read(discard) < 0) {
+                this.close(key);
+            }
+            return;
+        }
+        ByteBuffer hello = (ByteBuffer) key.attachment();
+        if (channel.read(hello) < 0) {
+            this.close(key);
+            return;
+        }
+        if (hello.hasRemaining()) {
+            return;
+        }
+        hello.flip();
+        Session session = new Session(hello.getLong(), channel, key);
+        key.attach(session);
+        Session previous = this.sessions.put(session.token, session);
+        if (previous != null) {
+            previous.closed = true;
+            previous.key.channel().close();
+        }
+        session.send(frame(FRAME_ACK, 0));
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Session) {
+            Session session = (Session) key.attachment();
+            session.closed = true;
+            this.sessions.remove(session.token, session);
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private void requestWrite(Session session) {
+        if (session.writeRequested.compareAndSet(false, true)) {
+            this.writeRequests.add(session);
+            if (this.wakeupPending.compareAndSet(false, true)) {
+                this.selector.wakeup();
+            }
+        }
+    }
+
+    // Allocates a frame with room for a body of bodyLength bytes after the type
+    private static ByteBuffer frame(byte type, int bodyLength) {
+        ByteBuffer frame = ByteBuffer.allocate(5 + bodyLength);
+        frame.putInt(1 + bodyLength);
+        frame.put(type);
+        return frame;
+    }
+
+    // Only the length and type of a frame whose body is written from another buffer
+    private static ByteBuffer header(byte type, int bodyLength) {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.putInt(1 + bodyLength);
+        header.put(type);
+        return header;
+    }
+
+    private static void putUTF(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    public class Session {
+        private long token;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+        private AtomicLong pendingBytes = new AtomicLong();
+        private AtomicBoolean writeRequested = new AtomicBoolean(false);
+        private volatile boolean closed = false;
+        // Only used by the selector thread
+        private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+        Session(long token, SocketChannel channel, SelectionKey key) {
+            this.token = token;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        // Synchronized so the frames of concurrent deliveries to the same client do not interleave
+        public synchronized void sendBatch(MessageBatch batch) throws RemoteException {
+            this.checkBacklog();
+            for (int i = 0; i < batch.getSenderCount(); i++) {
+                byte[] name = batch.getSenderName(i).getBytes(StandardCharsets.UTF_8);
+                ByteBuffer frame = frame(FRAME_SENDER, 4 + 4 + name.length);
+                frame.putInt(batch.getSenderId(i));
+                putUTF(frame, name);
+                this.enqueue(frame);
+            }
+            for (ChatMessage message : batch.getMessages()) {
+                byte[] encoded = message.encode();
+                this.enqueue(header(FRAME_MESSAGE, encoded.length));
+                // The encoded bytes are never written to, every connection wraps the same array
+                this.enqueue(ByteBuffer.wrap(encoded));
+            }
+            this.requestWrite();
+        }
+
+        // Room batches go as one frame in their own form. Only the sender definitions and the runs are written for
+        // this client, the encoded messages in between are the arrays every connection shares.
+        public synchronized void sendRoomBatch(RoomBatch batch) throws RemoteException {
+            this.checkBacklog();
+            ByteArrayOutputStream head = new ByteArrayOutputStream(64);
+            ByteArrayOutputStream runs = new ByteArrayOutputStream(64);
+            try {
+                batch.writeHeadTo(new DataOutputStream(head));
+                batch.writeRunsTo(new DataOutputStream(runs));
+            } catch (IOException e) {
+                // Writing to memory does not fail
+                throw new IllegalStateException(e);
+            }
+            ArrayList<ChatMessage> messages = batch.getMessageBatch().getMessages();
+            int length = head.size() + runs.size();
+            for (int i = 0; i < messages.size(); i++) {
+                length += messages.get(i).encode().length;
+            }
+            this.enqueue(header(FRAME_ROOM_BATCH, length));
+            this.enqueue(ByteBuffer.wrap(head.toByteArray()));
+            for (int i = 0; i < messages.size(); i++) {
+                this.enqueue(ByteBuffer.wrap(messages.get(i).encode()));
+            }
+            this.enqueue(ByteBuffer.wrap(runs.toByteArray()));
+            this.requestWrite();
+        }
+
+        public synchronized void sendText(String senderName, String msg) throws RemoteException {
+            this.checkBacklog();
+            byte[] sender = senderName == null ? new byte[0] : senderName.getBytes(StandardCharsets.UTF_8);
+            byte[] text = msg.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = frame(FRAME_TEXT, 1 + 4 + sender.length + 4 + text.length);
+            frame.put((byte) (senderName != null ? 1 : 0));
+            putUTF(frame, sender);
+            putUTF(frame, text);
+            this.enqueue(frame);
+            this.requestWrite();
+        }
+
+        public synchronized void sendPresence(PresenceDelta delta) throws RemoteException {
+            this.checkBacklog();
+            byte[] room = delta.getRoomName().getBytes(StandardCharsets.UTF_8);
+            ArrayList<byte[]> names = new ArrayList<byte[]>();
+            int length = 4 + room.length + 4;
+            for (String usrName : delta.getChanges().keySet()) {
+                byte[] name = usrName.getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                length += 1 + 4 + name.length;
+            }
+            ByteBuffer frame = frame(FRAME_PRESENCE, length);
+            putUTF(frame, room);
+            frame.putInt(names.size());
+            int i = 0;
+            for (byte change : delta.getChanges().values()) {
+                frame.put(change);
+                putUTF(frame, names.get(i++));
+            }
+            this.enqueue(frame);
+            this.requestWrite();
+        }
+
+        public synchronized void sendRooms(RoomDirectoryDelta delta) throws RemoteException {
+            this.checkBacklog();
+            ArrayList<byte[]> names = new ArrayList<byte[]>();
+            int length = 8 + 8 + 4;
+            for (String roomName : delta.getChanges().keySet()) {
+                byte[] name = roomName.getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                length += 1 + 4 + name.length;
+            }
+            ByteBuffer frame = frame(FRAME_ROOMS, length);
+            frame.putLong(delta.getFromVersion());
+            frame.putLong(delta.getVersion());
+            frame.putInt(names.size());
+            int i = 0;
+            for (boolean created : delta.getChanges().values()) {
+                frame.put((byte) (created ? 1 : 0));
+                putUTF(frame, names.get(i++));
+            }
+            this.enqueue(frame);
+            this.requestWrite();
+        }
+
+        private synchronized void send(ByteBuffer frame) {
+            this.enqueue(frame);
+            this.requestWrite();
+        }
+
+        private void checkBacklog() throws RemoteException {
+            if (this.closed) {
+                throw new RemoteException("NIO session " + this.token + " is closed");
+            }
+            if (this.pendingBytes.get() > MAX_PENDING_BYTES) {
+                throw new RemoteException("NIO session " + this.token + " is more than " + MAX_PENDING_BYTES + " bytes behind");
+            }
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            if (buffer.position() > 0) {
+                buffer.flip();
+            }
+            this.pendingBytes.addAndGet(buffer.remaining());
+            this.outbound.add(buffer);
+        }
+
+        private void requestWrite() {
+            NioPushServer.this.requestWrite(this);
+        }
+
+        // Writes as much as the socket takes with gathering writes, returns true once nothing is left
+        private boolean flush() throws IOException {
+            ByteBuffer[] gather = this.gather;
+            while (true) {
+                int count = 0;
+                for (ByteBuffer buffer : this.outbound) {
+                    gather[count++] = buffer;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                if (count == 0) {
+                    return true;
+                }
+                long written = this.channel.write(gather, 0, count);
+                this.pendingBytes.addAndGet(-written);
+                for (int i = 0; i < count && !gather[i].hasRemaining(); i++) {
+                    this.outbound.poll();
+                }
+                if (gather[count - 1].hasRemaining()) {
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.Serializable;
+import java.rmi.RemoteException;
+
+// Passed to joinRoom by clients using the NIO transport instead of an exported UserChat. It is copied to the process
+// hosting the room, where delivering to it queues frames on the client's push connection to that process, named by
+// its session token. A client connects to every process whose rooms it joins, see NioPushConnections.
+public class NioUserRef implements IUserChat, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long token;
+
+    public NioUserRef(long token) {
+        this.token = token;
+    }
+
+    // Fails unless the client has a push connection to this process, checked when it joins a room
+    void checkSession() throws RemoteException {
+        this.getSession();
+    }
+
+    private NioPushServer.Session getSession() throws RemoteException {
+        NioPushServer server = NioPushServer.getInstance();
+        if (server == null) {
+            throw new RemoteException("The NIO transport is not enabled on this process, join its rooms over RMI");
+        }
+        NioPushServer.Session session = server.getSession(this.token);
+        if (session == null) {
+            throw new RemoteException("No NIO connection for session " + this.token);
+        }
+        return session;
+    }
+
+    @Override
+    public void deliverMsg(String senderName, String msg) throws RemoteException {
+        this.getSession().sendText(senderName, msg);
+    }
+
+    @Override
+    public void deliverBatch(MessageBatch batch) throws RemoteException {
+        this.getSession().sendBatch(batch);
+    }
+
+    @Override
+    public void deliverRoomBatch(RoomBatch batch) throws RemoteException {
+        this.getSession().sendRoomBatch(batch);
+    }
+
+    @Override
+    public void deliverPresence(PresenceDelta delta) throws RemoteException {
+        this.getSession().sendPresence(delta);
+    }
+
+    @Override
+    public void deliverRooms(RoomDirectoryDelta delta) throws RemoteException {
+        this.getSession().sendRooms(delta);
+    }
+
+    // Copies of the same reference name the same connection, so they are the same subscriber
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof NioUserRef && ((NioUserRef) other).token == this.token;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.token);
+    }
+}
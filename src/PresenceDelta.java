@@ -0,0 +1,52 @@
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Membership changes of a room since the previous delta its recipient got. Only the latest change of each user
+// is kept, so applying deltas in order to the getMembers() snapshot always gives the current member list.
+public class PresenceDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final byte JOINED = 0;
+    public static final byte LEFT = 1;
+    public static final byte EVICTED = 2;
+
+    private String roomName;
+    private LinkedHashMap<String, Byte> changes = new LinkedHashMap<String, Byte>();
+
+    public PresenceDelta(String roomName) {
+        this.roomName = roomName;
+    }
+
+    public String getRoomName() {
+        return this.roomName;
+    }
+
+    public void put(String usrName, byte change) {
+        // Re-inserting moves the user to the end, keeping the changes in the order they happened
+        this.changes.remove(usrName);
+        this.changes.put(usrName, change);
+    }
+
+    public boolean isEmpty() {
+        return this.changes.isEmpty();
+    }
+
+    public int size() {
+        return this.changes.size();
+    }
+
+    public Map<String, Byte> getChanges() {
+        return this.changes;
+    }
+
+    // A new delta with the changes of this one followed by those of newer, neither of them is modified
+    public PresenceDelta mergedWith(PresenceDelta newer) {
+        PresenceDelta merged = new PresenceDelta(this.roomName);
+        merged.changes.putAll(this.changes);
+        for (Map.Entry<String, Byte> change : newer.changes.entrySet()) {
+            merged.put(change.getKey(), change.getValue());
+        }
+        return merged;
+    }
+}
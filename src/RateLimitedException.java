@@ -0,0 +1,30 @@
+import java.rmi.RemoteException;
+
+// Thrown by sendMsg when the sender or the room is over its rate limit, the message was not accepted
+public class RateLimitedException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    private long retryAfterMillis;
+
+    public RateLimitedException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    // RMI hands exceptions thrown by the server to the caller wrapped in a ServerException, returns the rate limit
+    // behind e or null when e has another cause
+    public static RateLimitedException of(RemoteException e) {
+        if (e instanceof RateLimitedException) {
+            return (RateLimitedException) e;
+        }
+        if (e.getCause() instanceof RateLimitedException) {
+            return (RateLimitedException) e.getCause();
+        }
+        return null;
+    }
+
+    // How long until the limit lets a message through again
+    public long getRetryAfterMillis() {
+        return this.retryAfterMillis;
+    }
+}
@@ -0,0 +1,563 @@
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A client with its own ordered outbound queue, shared by every room of this process the client joined with the same
+// callback. The queue is drained by at most one pool task at a time, so the client sees the messages of each room in
+// the order the room dispatched them, traffic from all its rooms is coalesced into the same deliveries, and a slow
+// or dead client only delays itself.
+public class Recipient implements Runnable {
+    // Members failing this many deliveries in a row are evicted from the room
+    static final int MAX_FAILURES = Integer.getInteger("chat.delivery.maxFailures", 3);
+    // Members that fall this far behind are evicted instead of growing their queue forever
+    static final int MAX_OUTBOX = Integer.getInteger("chat.delivery.maxOutbox", 4096);
+    // Up to this many queued messages are coalesced into one deliverBatch call
+    static final int MAX_BATCH = Integer.getInteger("chat.delivery.maxBatch", 64);
+    // How long a partial batch waits for more messages before it is sent, 0 only takes what is already queued
+    static final long LINGER_MILLIS = Long.getLong("chat.delivery.lingerMillis", 0);
+    // Names this process in the room batches it sends, the sender ids in them are only unique within it
+    static final long SOURCE = new SecureRandom().nextLong();
+    // Clients that renew their lease are evicted once they stopped renewing for this long, clients that never renew
+    // are only evicted after failed deliveries
+    static final long LEASE_MILLIS = Long.getLong("chat.lease.millis", 30000);
+    // Seq of the close notice a closing room queues behind its last message
+    static final long CLOSE_SEQ = Long.MAX_VALUE;
+
+    // The recipient of every callback that is in at least one room. A recipient is removed under its own lock once
+    // it left its last room, and a closed one is never reused.
+    private static ConcurrentHashMap<IUserChat, Recipient> recipients = new ConcurrentHashMap<IUserChat, Recipient>();
+
+    private String usrName;
+    private IUserChat user;
+    private ExecutorService pool;
+    // Rooms the client is in, copied on write under the lock of this recipient
+    private volatile Membership[] memberships = new Membership[0];
+    private ConcurrentLinkedQueue<ChatMessage> outbox = new ConcurrentLinkedQueue<ChatMessage>();
+    private AtomicInteger outboxSize = new AtomicInteger();
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    private int consecutiveFailures = 0;
+    // Cleared the first time the client turns out to predate deliverBatch
+    private volatile boolean batchSupported = true;
+    // Cleared the first time the client turns out to predate deliverRoomBatch
+    private volatile boolean roomBatchSupported = true;
+    // Cleared the first time the client turns out to predate deliverPresence
+    private volatile boolean presenceSupported = true;
+    // Presence changes not delivered yet by room, merged into one delta while the previous delivery is in flight
+    private LinkedHashMap<String, PresenceDelta> pendingPresence = new LinkedHashMap<String, PresenceDelta>();
+    // Name this client was last sent for every sender id (null if none), grown up to SenderTable.MAX_IDS
+    private String[] knownSenders = new String[64];
+    // Taken from the outbox but left for the next batch, because its sender id names someone else in this one
+    private ChatMessage heldBack;
+    // Close notice taken from the outbox, sent after the batch in front of it, only touched by the running task
+    private ChatMessage closeNotice;
+    private volatile boolean closed = false;
+    // 0 until the client first renews its lease
+    private volatile long leaseExpiresAt = 0;
+    private ChatMetrics metrics = ChatMetrics.getInstance();
+
+    private Recipient(String usrName, IUserChat user, ExecutorService pool) {
+        this.usrName = usrName;
+        this.user = user;
+        this.pool = pool;
+    }
+
+    // Adds room to the rooms of the client behind user, whose messages from fromSeq on are delivered to it from now.
+    // Joining a room again under the same name replaces the membership, messages still queued for the old one are not
+    // delivered. A callback is in a room under one name only, and in one room only if it predates deliverRoomBatch.
+    static Recipient join(String usrName, IUserChat user, Server.RoomChat room, long fromSeq, ExecutorService pool)
+            throws RemoteException {
+        while (true) {
+            Recipient recipient = recipients.get(user);
+            if (recipient == null) {
+                Recipient created = new Recipient(usrName, user, pool);
+                recipient = recipients.putIfAbsent(user, created);
+                if (recipient == null) {
+                    recipient = created;
+                }
+            }
+            synchronized (recipient) {
+                if (recipient.closed) {
+                    // Left its last room or was evicted while we looked it up, it is being removed from the map
+                    continue;
+                }
+                return recipient.addMembership(usrName, room, fromSeq);
+            }
+        }
+    }
+
+    private Recipient addMembership(String usrName, Server.RoomChat room, long fromSeq) throws RemoteException {
+        Membership[] memberships = this.memberships;
+        int index = indexOf(memberships, room);
+        if (index >= 0 && !memberships[index].usrName.equals(usrName)) {
+            throw new RemoteException("This client is already in room \"" + room.getRoomName() + "\" as \""
+                + memberships[index].usrName + "\"");
+        }
+        if (index < 0 && memberships.length > 0 && !this.roomBatchSupported) {
+            throw new RemoteException("This client predates deliverRoomBatch and can only be in one room");
+        }
+        // Joining again does not refill the sendMsg limit
+        TokenBucket sendBucket = index >= 0 ? memberships[index].sendBucket
+            : Server.RoomChat.USER_RATE > 0 ? new TokenBucket(Server.RoomChat.USER_RATE, Server.RoomChat.USER_BURST) : null;
+        if (index < 0) {
+            memberships = Arrays.copyOf(memberships, memberships.length + 1);
+            index = memberships.length - 1;
+        } else {
+            memberships = memberships.clone();
+        }
+        memberships[index] = new Membership(room, usrName, fromSeq, sendBucket);
+        this.memberships = memberships;
+        return this;
+    }
+
+    // Stops delivering the messages of room, the recipient is closed when it was the last room of the client
+    synchronized void leave(Server.RoomChat room) {
+        Membership[] memberships = this.memberships;
+        int index = indexOf(memberships, room);
+        if (index < 0) {
+            return;
+        }
+        Membership[] remaining = new Membership[memberships.length - 1];
+        System.arraycopy(memberships, 0, remaining, 0, index);
+        System.arraycopy(memberships, index + 1, remaining, index, remaining.length - index);
+        this.memberships = remaining;
+        this.pendingPresence.remove(room.getRoomName());
+        if (remaining.length == 0) {
+            this.close();
+            recipients.remove(this.user, this);
+        }
+    }
+
+    // Returns the lease length, 0 if the client is not in room
+    static long renewLease(IUserChat user, Server.RoomChat room) {
+        Recipient recipient = recipients.get(user);
+        if (recipient == null || indexOf(recipient.memberships, room) < 0) {
+            return 0;
+        }
+        recipient.leaseExpiresAt = System.currentTimeMillis() + LEASE_MILLIS;
+        return LEASE_MILLIS;
+    }
+
+    // Looks for expired leases every quarter of a lease, dead clients leave their rooms without anybody having to
+    // send them something first
+    static void startLeaseSweeper(ScheduledExecutorService timer) {
+        long period = Math.max(LEASE_MILLIS / 4, 1);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                expireLeases();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static void expireLeases() {
+        long now = System.currentTimeMillis();
+        ArrayList<Recipient> expired = new ArrayList<Recipient>();
+        for (Recipient recipient : recipients.values()) {
+            long expiresAt = recipient.leaseExpiresAt;
+            if (expiresAt != 0 && expiresAt < now) {
+                expired.add(recipient);
+            }
+        }
+        for (Recipient recipient : expired) {
+            recipient.metrics.expiredLeases.increment();
+            recipient.evict("lease expired " + (now - recipient.leaseExpiresAt) + " ms ago");
+        }
+    }
+
+    private static int indexOf(Membership[] memberships, Server.RoomChat room) {
+        for (int i = 0; i < memberships.length; i++) {
+            if (memberships[i].room == room) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Membership getMembership(String roomName) {
+        for (Membership membership : this.memberships) {
+            if (membership.roomName.equals(roomName)) {
+                return membership;
+            }
+        }
+        return null;
+    }
+
+    // The sendMsg limit of the client in room, null if there is none or the client is not in room
+    TokenBucket getSendBucket(Server.RoomChat room) {
+        Membership[] memberships = this.memberships;
+        int index = indexOf(memberships, room);
+        return index < 0 ? null : memberships[index].sendBucket;
+    }
+
+    public String getUsrName() {
+        return this.usrName;
+    }
+
+    public IUserChat getUser() {
+        return this.user;
+    }
+
+    public void enqueue(ChatMessage message) {
+        if (this.closed) {
+            return;
+        }
+        this.outbox.add(message);
+        // The outbox is shared by all the rooms of the client, so it may hold that many more
+        int maxOutbox = MAX_OUTBOX * Math.max(1, this.memberships.length);
+        if (this.outboxSize.incrementAndGet() > maxOutbox) {
+            this.evict("more than " + maxOutbox + " messages behind");
+            return;
+        }
+        this.schedule();
+    }
+
+    public void enqueuePresence(PresenceDelta delta) {
+        if (this.closed) {
+            return;
+        }
+        synchronized (this) {
+            PresenceDelta pending = this.pendingPresence.get(delta.getRoomName());
+            this.pendingPresence.put(delta.getRoomName(), pending == null ? delta : pending.mergedWith(delta));
+        }
+        this.schedule();
+    }
+
+    // Queues the close notice of room behind the messages already queued for it, false if the recipient is closed
+    boolean enqueueClose(Server.RoomChat room, String notice) {
+        if (this.closed) {
+            return false;
+        }
+        ChatMessage message = new ChatMessage(null, notice);
+        message.roomName = room.getRoomName();
+        message.seq = CLOSE_SEQ;
+        this.outbox.add(message);
+        this.outboxSize.incrementAndGet();
+        this.schedule();
+        return true;
+    }
+
+    // Tells the client a room it was in was closed, straight away and tagged with the room if the client can take it
+    public void deliverCloseNotice(String roomName, String notice) {
+        try {
+            if (this.roomBatchSupported) {
+                ChatMessage message = new ChatMessage(null, notice);
+                RoomBatch batch = new RoomBatch(SOURCE);
+                batch.add(roomName, message);
+                try {
+                    this.user.deliverRoomBatch(batch);
+                    return;
+                } catch (RemoteException e) {
+                    if (!isUnsupportedMethod(e)) {
+                        throw e;
+                    }
+                    this.roomBatchSupported = false;
+                }
+            }
+            this.user.deliverMsg(null, notice);
+        } catch (Exception e) {
+            Log.warn("Error while sending close message to user \"" + this.usrName + "\": " + e.toString());
+        }
+    }
+
+    // Sends the close notice taken by pollInto and leaves its room, unless the room gave up waiting for it
+    private void sendCloseNotice() {
+        ChatMessage notice = this.closeNotice;
+        this.closeNotice = null;
+        Membership membership = this.getMembership(notice.roomName);
+        if (membership == null || !membership.room.claimCloseNotice(this)) {
+            return;
+        }
+        this.deliverCloseNotice(notice.roomName, notice.msg);
+        this.leave(membership.room);
+        membership.room.closeNoticeDone();
+    }
+
+    // Stops delivering, anything still queued is discarded
+    private void close() {
+        this.closed = true;
+        this.outbox.clear();
+        synchronized (this) {
+            this.pendingPresence.clear();
+        }
+    }
+
+    private synchronized ArrayList<PresenceDelta> takePresence() {
+        if (this.pendingPresence.isEmpty()) {
+            return null;
+        }
+        ArrayList<PresenceDelta> presence = new ArrayList<PresenceDelta>(this.pendingPresence.values());
+        this.pendingPresence.clear();
+        return presence;
+    }
+
+    private synchronized boolean hasPresence() {
+        return !this.pendingPresence.isEmpty();
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.pool.execute(this);
+        }
+    }
+
+    // Removes the client from all its rooms
+    private void evict(String reason) {
+        Log.warn("Evicting user \"" + this.usrName + "\": " + reason);
+        this.metrics.evictions.increment();
+        final Membership[] memberships;
+        synchronized (this) {
+            memberships = this.memberships;
+            this.memberships = new Membership[0];
+            this.close();
+            recipients.remove(this.user, this);
+        }
+        // Evictions can start from a room dispatcher while it iterates the members, so the rooms are told later
+        final Recipient recipient = this;
+        this.pool.execute(new Runnable() {
+            public void run() {
+                for (Membership membership : memberships) {
+                    membership.room.evictUser(membership.usrName, recipient);
+                }
+            }
+        });
+    }
+
+    // A failed delivery is sent again, with whatever was queued since, until it goes through or the client is
+    // evicted, so a transient failure never loses messages. Clients skip what they already got by seq.
+    @Override
+    public void run() {
+        RoomBatch batch = new RoomBatch(SOURCE);
+        ArrayList<PresenceDelta> presence = null;
+        while (!this.closed) {
+            // Presence goes first, it only ever describes changes made before the messages now queued were sent
+            if (presence == null) {
+                presence = this.takePresence();
+            }
+            boolean hasMessages = this.fillBatch(batch);
+            if (presence == null && !hasMessages) {
+                break;
+            }
+            long start = System.nanoTime();
+            try {
+                if (presence != null) {
+                    for (PresenceDelta delta : presence) {
+                        this.deliverPresence(delta);
+                    }
+                    presence = null;
+                }
+                if (!batch.isEmpty()) {
+                    this.deliver(batch);
+                    this.recordDelivered(batch, start);
+                }
+                this.consecutiveFailures = 0;
+            } catch (RemoteException e) {
+                this.metrics.deliveryFailures.increment();
+                this.consecutiveFailures++;
+                Log.warn("Error while delivering message to user \"" + this.usrName + "\": " + e.toString());
+                if (this.consecutiveFailures >= MAX_FAILURES) {
+                    this.evict(this.consecutiveFailures + " failed deliveries");
+                    return;
+                }
+                // The batch keeps the sender names it defines, so knownSenders still holds once it is sent again
+                continue;
+            }
+            batch.clear();
+            if (this.closeNotice != null) {
+                this.sendCloseNotice();
+            }
+        }
+        this.scheduled.set(false);
+        // A message may have arrived after our last poll but before we cleared the flag
+        if (!this.closed && (!this.outbox.isEmpty() || this.heldBack != null || this.hasPresence())) {
+            this.schedule();
+        }
+    }
+
+    // Moves up to MAX_BATCH queued messages into batch, lingering once if the batch is not full. Also true when there
+    // is only a close notice to send.
+    private boolean fillBatch(RoomBatch batch) {
+        if (this.closeNotice != null) {
+            // A failed batch ending at a close notice is sent again as it was
+            return true;
+        }
+        this.pollInto(batch);
+        if (batch.isEmpty()) {
+            return this.closeNotice != null;
+        }
+        if (batch.size() < MAX_BATCH && LINGER_MILLIS > 0 && this.batchSupported && this.closeNotice == null) {
+            try {
+                Thread.sleep(LINGER_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.pollInto(batch);
+        }
+        return true;
+    }
+
+    private void pollInto(RoomBatch batch) {
+        while (batch.size() < MAX_BATCH) {
+            ChatMessage message = this.heldBack;
+            if (message != null) {
+                this.heldBack = null;
+            } else if ((message = this.outbox.poll()) != null) {
+                this.outboxSize.decrementAndGet();
+            } else {
+                break;
+            }
+            Membership membership = this.getMembership(message.roomName);
+            if (membership == null || message.seq < membership.fromSeq) {
+                // Left the room since, or queued for an earlier membership of it
+                continue;
+            }
+            if (message.seq == CLOSE_SEQ) {
+                // Ends the batch, the notice goes out on its own right after it
+                this.closeNotice = message;
+                break;
+            }
+            if (message.senderId != SenderTable.NO_SENDER) {
+                String known = this.getKnownSender(message.senderId);
+                if (!message.senderName.equals(known)) {
+                    if (known != null && !batch.isEmpty()) {
+                        // The id was given to another sender since, the batch may hold messages of the old one
+                        this.heldBack = message;
+                        break;
+                    }
+                    this.setKnownSender(message.senderId, message.senderName);
+                    batch.defineSender(message.senderId, message.senderName);
+                }
+            }
+            batch.add(message.roomName, message);
+        }
+    }
+
+    private String getKnownSender(int senderId) {
+        return senderId < this.knownSenders.length ? this.knownSenders[senderId] : null;
+    }
+
+    private void setKnownSender(int senderId, String senderName) {
+        if (senderId >= this.knownSenders.length) {
+            int length = Math.min(SenderTable.MAX_IDS, Math.max(senderId + 1, this.knownSenders.length * 2));
+            this.knownSenders = Arrays.copyOf(this.knownSenders, length);
+        }
+        this.knownSenders[senderId] = senderName;
+    }
+
+    private void deliver(RoomBatch batch) throws RemoteException {
+        if (this.roomBatchSupported) {
+            try {
+                this.user.deliverRoomBatch(batch);
+                return;
+            } catch (RemoteException e) {
+                if (!isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                Log.info("User \"" + this.usrName + "\" does not support deliverRoomBatch, falling back to deliverBatch");
+                this.roomBatchSupported = false;
+            }
+        }
+        // Such clients cannot join a second room from now on, but may have joined several before we found out
+        MessageBatch messages = this.memberships.length > 1 ? tagRooms(batch.getMessageBatch()) : batch.getMessageBatch();
+        if (this.batchSupported) {
+            try {
+                this.user.deliverBatch(messages);
+                return;
+            } catch (RemoteException e) {
+                if (!isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                Log.info("User \"" + this.usrName + "\" does not support deliverBatch, falling back to deliverMsg");
+                this.batchSupported = false;
+            }
+        }
+        for (ChatMessage message : messages.getMessages()) {
+            this.user.deliverMsg(message.senderName, message.msg);
+        }
+    }
+
+    // Copies of the messages prefixed with their room, the originals are shared with the other members
+    private static MessageBatch tagRooms(MessageBatch batch) {
+        MessageBatch tagged = new MessageBatch();
+        for (int i = 0; i < batch.getSenderCount(); i++) {
+            tagged.defineSender(batch.getSenderId(i), batch.getSenderName(i));
+        }
+        for (ChatMessage message : batch.getMessages()) {
+            ChatMessage copy = new ChatMessage();
+            copy.seq = message.seq;
+            copy.senderId = message.senderId;
+            copy.senderName = message.senderName;
+            copy.msg = "[" + message.roomName + "] " + message.msg;
+            copy.timestamp = message.timestamp;
+            copy.enqueuedAt = message.enqueuedAt;
+            copy.roomName = message.roomName;
+            tagged.add(copy);
+        }
+        return tagged;
+    }
+
+    private void deliverPresence(PresenceDelta delta) throws RemoteException {
+        if (this.presenceSupported) {
+            try {
+                this.user.deliverPresence(delta);
+                return;
+            } catch (RemoteException e) {
+                if (!isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                Log.info("User \"" + this.usrName + "\" does not support deliverPresence, falling back to deliverMsg");
+                this.presenceSupported = false;
+            }
+        }
+        // Older clients get the changes as the chat lines they used to see
+        for (Map.Entry<String, Byte> change : delta.getChanges().entrySet()) {
+            byte kind = change.getValue();
+            this.user.deliverMsg(change.getKey(), kind == PresenceDelta.JOINED ? "Has joined the room"
+                : kind == PresenceDelta.LEFT ? "Has left the room" : "Was removed from the room");
+        }
+    }
+
+    private void recordDelivered(RoomBatch batch, long start) {
+        long now = System.nanoTime();
+        this.metrics.deliveryCall.record(now - start);
+        ArrayList<ChatMessage> messages = batch.getMessageBatch().getMessages();
+        // Indexed so that recording does not allocate an iterator
+        for (int i = 0; i < messages.size(); i++) {
+            this.metrics.enqueueToDeliver.record(now - messages.get(i).enqueuedAt);
+        }
+        this.metrics.deliveredMessages.add(messages.size());
+    }
+
+    // Clients compiled against an older IUserChat reject the unknown method hash before running anything,
+    // RMI reports that as a ServerException wrapping an UnmarshalException
+    private static boolean isUnsupportedMethod(RemoteException e) {
+        return e instanceof ServerException && e.getCause() instanceof UnmarshalException;
+    }
+
+    // A room the client is in, the name it joined it with and its sendMsg limit there
+    private static class Membership {
+        Server.RoomChat room;
+        String roomName;
+        String usrName;
+        long fromSeq;
+        TokenBucket sendBucket;
+
+        Membership(Server.RoomChat room, String usrName, long fromSeq, TokenBucket sendBucket) {
+            this.room = room;
+            this.roomName = room.getRoomName();
+            this.usrName = usrName;
+            this.fromSeq = fromSeq;
+            this.sendBucket = sendBucket;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+// Ordered messages from any of the rooms a client is in, delivered with one call. Consecutive messages of the same
+// room form a run that names the room once. Sender ids are only unique within the server process that wrote the
+// batch, so the batch says which process that was (source) and clients keep the sender names of every source apart.
+public class RoomBatch implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private long source;
+    private MessageBatch messages = new MessageBatch();
+    private ArrayList<String> runRooms = new ArrayList<String>();
+    // Index of the message after the last one of every run
+    private int[] runEnds = new int[4];
+
+    // Used by deserialization only
+    public RoomBatch() {
+    }
+
+    public RoomBatch(long source) {
+        this.source = source;
+    }
+
+    public long getSource() {
+        return this.source;
+    }
+
+    public void defineSender(int senderId, String senderName) {
+        this.messages.defineSender(senderId, senderName);
+    }
+
+    public void add(String roomName, ChatMessage message) {
+        int run = this.runRooms.size() - 1;
+        if (run < 0 || !this.runRooms.get(run).equals(roomName)) {
+            this.runRooms.add(roomName);
+            run++;
+            if (run == this.runEnds.length) {
+                this.runEnds = Arrays.copyOf(this.runEnds, run * 2);
+            }
+        }
+        this.messages.add(message);
+        this.runEnds[run] = this.messages.size();
+    }
+
+    public int size() {
+        return this.messages.size();
+    }
+
+    public boolean isEmpty() {
+        return this.messages.isEmpty();
+    }
+
+    // The same messages and sender definitions without the rooms, for clients that predate deliverRoomBatch
+    public MessageBatch getMessageBatch() {
+        return this.messages;
+    }
+
+    public void clear() {
+        this.messages.clear();
+        this.runRooms.clear();
+    }
+
+    // Learns the senders this batch defines and fills in the sender and room name of every message
+    public ArrayList<ChatMessage> resolve(Map<Integer, String> senderNames) {
+        ArrayList<ChatMessage> resolved = this.messages.resolve(senderNames);
+        int start = 0;
+        for (int run = 0; run < this.runRooms.size(); run++) {
+            String roomName = this.runRooms.get(run);
+            for (int i = start; i < this.runEnds[run]; i++) {
+                resolved.get(i).roomName = roomName;
+            }
+            start = this.runEnds[run];
+        }
+        return resolved;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        this.writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        this.readFrom(in);
+    }
+
+    // Also the body of the NIO room batch frame
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(this.source);
+        this.messages.writeTo(out);
+        this.writeRunsTo(out);
+    }
+
+    // What writeTo writes in front of the encoded messages, so the NIO transport can send those from the shared arrays
+    void writeHeadTo(DataOutput out) throws IOException {
+        out.writeLong(this.source);
+        this.messages.writeHeadTo(out);
+    }
+
+    // What writeTo writes after the encoded messages
+    void writeRunsTo(DataOutput out) throws IOException {
+        ChatMessage.writeVarLong(out, this.runRooms.size());
+        int start = 0;
+        for (int run = 0; run < this.runRooms.size(); run++) {
+            out.writeUTF(this.runRooms.get(run));
+            ChatMessage.writeVarLong(out, this.runEnds[run] - start);
+            start = this.runEnds[run];
+        }
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        this.source = in.readLong();
+        this.messages.readFrom(in);
+        int runs = (int) ChatMessage.readVarLong(in);
+        this.runEnds = new int[Math.max(runs, 1)];
+        int end = 0;
+        for (int run = 0; run < runs; run++) {
+            this.runRooms.add(in.readUTF());
+            end += (int) ChatMessage.readVarLong(in);
+            this.runEnds[run] = end;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Pushes room creations and closes to the clients that subscribed, instead of having them poll getRooms.
+// Changes within -Dchat.directory.intervalMillis become one versioned delta, and every subscriber gets its deltas
+// in order from its own delivery task, merged while a previous delivery to it is still in flight.
+public class RoomDirectory {
+    static final long INTERVAL_MILLIS = Long.getLong("chat.directory.intervalMillis", 250);
+
+    private ExecutorService deliveryPool;
+    private ScheduledExecutorService timer;
+    private ConcurrentHashMap<IUserChat, Subscriber> subscribers = new ConcurrentHashMap<IUserChat, Subscriber>();
+    // Guarded by this
+    private long version = 0;
+    private RoomDirectoryDelta pending;
+    private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    RoomDirectory(ExecutorService deliveryPool, ScheduledExecutorService timer) {
+        this.deliveryPool = deliveryPool;
+        this.timer = timer;
+    }
+
+    // Returns the version the next delta of the subscriber starts from. Rooms changed before the call are already
+    // visible to getRooms, so a client that subscribes first and then pages through the rooms misses nothing.
+    public synchronized long subscribe(IUserChat user) {
+        this.subscribers.put(user, new Subscriber(user));
+        return this.version;
+    }
+
+    public void unsubscribe(IUserChat user) {
+        Subscriber subscriber = this.subscribers.remove(user);
+        if (subscriber != null) {
+            subscriber.closed = true;
+        }
+    }
+
+    // Called after the room was added to or removed from the room list
+    public void roomChanged(String roomName, boolean created) {
+        synchronized (this) {
+            if (this.pending == null) {
+                this.pending = new RoomDirectoryDelta(this.version, this.version + 1);
+            }
+            this.pending.put(roomName, created);
+        }
+        if (this.flushScheduled.compareAndSet(false, true)) {
+            this.timer.schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        RoomDirectoryDelta delta;
+        synchronized (this) {
+            this.flushScheduled.set(false);
+            delta = this.pending;
+            this.pending = null;
+            if (delta == null) {
+                return;
+            }
+            this.version = delta.getVersion();
+        }
+        for (Subscriber subscriber : this.subscribers.values()) {
+            subscriber.enqueue(delta);
+        }
+    }
+
+    private class Subscriber implements Runnable {
+        private IUserChat user;
+        private RoomDirectoryDelta pending;
+        private AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile boolean closed = false;
+
+        Subscriber(IUserChat user) {
+            this.user = user;
+        }
+
+        void enqueue(RoomDirectoryDelta delta) {
+            synchronized (this) {
+                this.pending = this.pending == null ? delta : this.pending.mergedWith(delta);
+            }
+            if (this.scheduled.compareAndSet(false, true)) {
+                deliveryPool.execute(this);
+            }
+        }
+
+        private synchronized RoomDirectoryDelta take() {
+            RoomDirectoryDelta delta = this.pending;
+            this.pending = null;
+            return delta;
+        }
+
+        @Override
+        public void run() {
+            RoomDirectoryDelta delta;
+            while (!this.closed && (delta = this.take()) != null) {
+                try {
+                    this.user.deliverRooms(delta);
+                } catch (RemoteException e) {
+                    // The client reloads the rooms and subscribes again when it comes back
+                    Log.warn("Error while pushing rooms, unsubscribing: " + e.toString());
+                    subscribers.remove(this.user, this);
+                    this.closed = true;
+                }
+            }
+            this.scheduled.set(false);
+            synchronized (this) {
+                if (this.closed || this.pending == null) {
+                    return;
+                }
+            }
+            if (this.scheduled.compareAndSet(false, true)) {
+                deliveryPool.execute(this);
+            }
+        }
+    }
+}
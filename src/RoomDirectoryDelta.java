@@ -0,0 +1,50 @@
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Rooms created and closed between two versions of the server's room directory. A client that knows the rooms at
+// getFromVersion() gets the rooms at getVersion() by applying it, otherwise it has missed a delta and must reload.
+public class RoomDirectoryDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long fromVersion;
+    private long version;
+    // true for a room that was created, false for one that was closed, only the latest change of each room is kept
+    private LinkedHashMap<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+
+    public RoomDirectoryDelta(long fromVersion, long version) {
+        this.fromVersion = fromVersion;
+        this.version = version;
+    }
+
+    public long getFromVersion() {
+        return this.fromVersion;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public void put(String roomName, boolean created) {
+        this.changes.remove(roomName);
+        this.changes.put(roomName, created);
+    }
+
+    public boolean isEmpty() {
+        return this.changes.isEmpty();
+    }
+
+    public Map<String, Boolean> getChanges() {
+        return this.changes;
+    }
+
+    // A delta from the first version of this one to the version of newer, neither of them is modified
+    public RoomDirectoryDelta mergedWith(RoomDirectoryDelta newer) {
+        RoomDirectoryDelta merged = new RoomDirectoryDelta(this.fromVersion, newer.version);
+        merged.changes.putAll(this.changes);
+        for (Map.Entry<String, Boolean> change : newer.changes.entrySet()) {
+            merged.put(change.getKey(), change.getValue());
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+// What clients get for a room instead of a stub of the room itself: the room's id and name, the stub of the
+// router of the process hosting it and, for a room host with the NIO transport, the address NIO clients connect to. Handles are not exported, they travel by value, so a process with many rooms
+// still has a single exported object and creating or closing a room never touches the RMI runtime.
+public class RoomHandle implements IRoomChat, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private IRoomRouter router;
+    private long roomId;
+    private String roomName;
+    // "host:port" of the NIO transport of a room host, null for the rooms of the directory
+    private String pushAddress;
+
+    RoomHandle(IRoomRouter router, long roomId, String roomName, String pushAddress) {
+        this.router = router;
+        this.roomId = roomId;
+        this.roomName = roomName;
+        this.pushAddress = pushAddress;
+    }
+
+    public String getPushAddress() {
+        return this.pushAddress;
+    }
+
+    @Override
+    public void sendMsg(String usrName, String msg) throws RemoteException {
+        this.router.sendMsg(this.roomId, usrName, msg);
+    }
+
+    @Override
+    public void joinRoom(String usrName, IUserChat user) throws RemoteException {
+        this.router.joinRoom(this.roomId, usrName, user);
+    }
+
+    @Override
+    public void leaveRoom(String usrName) throws RemoteException {
+        this.router.leaveRoom(this.roomId, usrName);
+    }
+
+    @Override
+    public void closeRoom() throws RemoteException {
+        this.router.closeRoom(this.roomId);
+    }
+
+    // Known without asking the router, it cannot change
+    @Override
+    public String getRoomName() {
+        return this.roomName;
+    }
+
+    @Override
+    public ArrayList<ChatMessage> getHistory(long sinceSeq, int maxMessages) throws RemoteException {
+        return this.router.getHistory(this.roomId, sinceSeq, maxMessages);
+    }
+
+    @Override
+    public ArrayList<String> getMembers() throws RemoteException {
+        return this.router.getMembers(this.roomId);
+    }
+
+    @Override
+    public ArrayList<ChatMessage> search(String terms, String senderName, long fromTime, long toTime, int maxResults)
+            throws RemoteException {
+        return this.router.search(this.roomId, terms, senderName, fromTime, toTime, maxResults);
+    }
+
+    @Override
+    public long renewLease(IUserChat user) throws RemoteException {
+        return this.router.renewLease(this.roomId, user);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RoomHandle)) {
+            return false;
+        }
+        RoomHandle handle = (RoomHandle) other;
+        return this.roomId == handle.roomId && this.router.equals(handle.router);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.roomId) * 31 + this.router.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "RoomHandle[" + this.roomName + " #" + this.roomId + "]";
+    }
+}
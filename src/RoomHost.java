@@ -0,0 +1,148 @@
+import java.net.InetAddress;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Extra capacity for the chat server: runs rooms in its own process and registers with the "Servidor" directory
+// (through "ServidorHosts"), which places rooms on the registered hosts by consistent hashing. Clients get the
+// handles of these rooms from the directory and then talk to this process directly, so messages never go through
+// the directory.
+//
+// Started with: java RoomHost <directory ip> <host id> [rmi|nio]
+// With nio it also pushes to NIO clients, on -Dchat.nio.port (any free port by default). The handles of its rooms
+// carry that port and -Djava.rmi.server.hostname (the local address by default), NIO clients connect there.
+public class RoomHost implements IRoomHost {
+    private String hostId;
+    private ConcurrentSkipListMap<String, Server.RoomChat> rooms = new ConcurrentSkipListMap<String, Server.RoomChat>();
+    // The rooms are not exported one by one, clients reach all of them through this router
+    private RoomRouter router = new RoomRouter();
+    private ExecutorService pool;
+    private ExecutorService deliveryPool;
+    private ScheduledExecutorService presenceTimer;
+    private int queueCapacity = Integer.getInteger("chat.room.queueCapacity", 1024);
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.valueOf(
+        System.getProperty("chat.room.backpressure", BackpressurePolicy.BLOCK.name()));
+
+    RoomHost(String hostId) {
+        this.hostId = hostId;
+        this.pool = Executors.newFixedThreadPool(
+            Integer.getInteger("chat.dispatch.threads", Runtime.getRuntime().availableProcessors()));
+        this.deliveryPool = Executors.newCachedThreadPool();
+        this.presenceTimer = Executors.newSingleThreadScheduledExecutor();
+        Recipient.startLeaseSweeper(this.presenceTimer);
+        ChatMetrics.getInstance().register(this.rooms);
+    }
+
+    @Override
+    public IRoomChat createRoom(String roomName) throws RemoteException {
+        Server.RoomChat room = new Server.RoomChat(roomName, this.queueCapacity, this.backpressurePolicy,
+            this.pool, this.deliveryPool, this.presenceTimer);
+        if (this.rooms.putIfAbsent(roomName, room) != null) {
+            throw new RemoteException("Room \"" + roomName + "\" already exists on host " + this.hostId);
+        }
+        try {
+            this.router.register(room);
+            System.out.println("Created room: " + roomName);
+            return room.getHandle();
+        } catch (RemoteException e) {
+            this.rooms.remove(roomName, room);
+            throw e;
+        }
+    }
+
+    // Returns while the room drains
+    @Override
+    public void closeRoom(String roomName) {
+        this.close(roomName);
+    }
+
+    private Server.RoomChat close(String roomName) {
+        Server.RoomChat room = this.rooms.remove(roomName);
+        if (room == null) {
+            return null;
+        }
+        this.router.unregister(room);
+        room.beginClose(false);
+        return room;
+    }
+
+    @Override
+    public boolean closeRoomIfEmpty(String roomName) {
+        Server.RoomChat room = this.rooms.get(roomName);
+        if (room == null || !room.closeIfEmpty()) {
+            return false;
+        }
+        this.rooms.remove(roomName, room);
+        this.router.unregister(room);
+        return true;
+    }
+
+    @Override
+    public int getRoomCount() {
+        return this.rooms.size();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("rmi") && !args[2].equals("nio"))) {
+            System.err.println("Pass the directory server IP and a unique host id as command line arguments, "
+                + "optionally followed by rmi or nio");
+            return;
+        }
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", System.getProperty("chat.delivery.timeoutMillis", "5000"));
+        }
+
+        try {
+            final String hostId = args[1];
+            final RoomHost host = new RoomHost(hostId);
+            if (args.length == 3 && args[2].equals("nio")) {
+                NioPushServer push = NioPushServer.start(Integer.getInteger("chat.nio.port", 0));
+                String address = System.getProperty("java.rmi.server.hostname", InetAddress.getLocalHost().getHostAddress());
+                host.router.setPushAddress(address + ":" + push.getPort());
+            }
+            IRoomHost stub = (IRoomHost) UnicastRemoteObject.exportObject(host, 0);
+            Registry registry = LocateRegistry.getRegistry(args[0], 2020);
+            final IHostRegistry directory = (IHostRegistry) registry.lookup("ServidorHosts");
+            directory.registerHost(hostId, stub);
+            System.out.println("Room host " + hostId + " registered with " + args[0]);
+
+            // Leave the ring before the rooms go away, the directory places them again on the remaining hosts
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        directory.unregisterHost(hostId);
+                    } catch (Exception e) {
+                        System.err.println("Error while unregistering host " + hostId + ": " + e.toString());
+                    }
+                    ArrayList<Server.RoomChat> closing = new ArrayList<Server.RoomChat>();
+                    for (String roomName : host.rooms.keySet()) {
+                        Server.RoomChat room = host.close(roomName);
+                        if (room != null) {
+                            closing.add(room);
+                        }
+                    }
+                    // The members get what was queued for them and the close notice before the process goes
+                    long deadline = System.nanoTime() + Server.ServerChat.SHUTDOWN_MILLIS * 1000000;
+                    for (Server.RoomChat room : closing) {
+                        while (!room.isClosed() && System.nanoTime() < deadline) {
+                            try {
+                                Thread.sleep(50);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (Exception e) {
+            System.err.println("Room host exception: " + e.toString());
+            e.printStackTrace();
+        }
+    }
+}
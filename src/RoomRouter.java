@@ -0,0 +1,102 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Serves the rooms of a process through a single exported object. Registering a room only adds it to a map, its
+// RoomHandle is made when somebody asks for it. Ids are never reused, so the handle of a closed room fails with
+// NoSuchObjectException like the stub of an unexported room would, even after a room with the same name was created.
+public class RoomRouter implements IRoomRouter {
+    private ConcurrentHashMap<Long, Server.RoomChat> rooms = new ConcurrentHashMap<Long, Server.RoomChat>();
+    private AtomicLong nextId = new AtomicLong(1);
+    // Null until the first room is registered
+    private volatile IRoomRouter stub;
+    // Given to the handles of the rooms of a room host running the NIO transport, null otherwise
+    private volatile String pushAddress;
+
+    void setPushAddress(String pushAddress) {
+        this.pushAddress = pushAddress;
+    }
+
+    // Makes the room reachable, returns its id
+    public long register(Server.RoomChat room) throws RemoteException {
+        IRoomRouter stub = this.export();
+        long roomId = this.nextId.getAndIncrement();
+        this.rooms.put(roomId, room);
+        room.setRouter(stub, roomId, this.pushAddress);
+        return roomId;
+    }
+
+    public void unregister(Server.RoomChat room) {
+        this.rooms.remove(room.getRoomId(), room);
+    }
+
+    public int getRoomCount() {
+        return this.rooms.size();
+    }
+
+    private IRoomRouter export() throws RemoteException {
+        IRoomRouter stub = this.stub;
+        if (stub == null) {
+            synchronized (this) {
+                if (this.stub == null) {
+                    this.stub = (IRoomRouter) UnicastRemoteObject.exportObject(this, 0);
+                }
+                stub = this.stub;
+            }
+        }
+        return stub;
+    }
+
+    private Server.RoomChat getRoom(long roomId) throws NoSuchObjectException {
+        Server.RoomChat room = this.rooms.get(roomId);
+        if (room == null) {
+            throw new NoSuchObjectException("Room #" + roomId + " was closed");
+        }
+        return room;
+    }
+
+    @Override
+    public void sendMsg(long roomId, String usrName, String msg) throws RemoteException {
+        this.getRoom(roomId).sendMsg(usrName, msg);
+    }
+
+    @Override
+    public void joinRoom(long roomId, String usrName, IUserChat user) throws RemoteException {
+        this.getRoom(roomId).joinRoom(usrName, user);
+    }
+
+    @Override
+    public void leaveRoom(long roomId, String usrName) throws RemoteException {
+        this.getRoom(roomId).leaveRoom(usrName);
+    }
+
+    // Refused by the room, rooms are closed through the directory or their host
+    @Override
+    public void closeRoom(long roomId) throws RemoteException {
+        this.getRoom(roomId).closeRoom();
+    }
+
+    @Override
+    public ArrayList<ChatMessage> getHistory(long roomId, long sinceSeq, int maxMessages) throws RemoteException {
+        return this.getRoom(roomId).getHistory(sinceSeq, maxMessages);
+    }
+
+    @Override
+    public ArrayList<String> getMembers(long roomId) throws RemoteException {
+        return this.getRoom(roomId).getMembers();
+    }
+
+    @Override
+    public ArrayList<ChatMessage> search(long roomId, String terms, String senderName, long fromTime, long toTime,
+            int maxResults) throws RemoteException {
+        return this.getRoom(roomId).search(terms, senderName, fromTime, toTime, maxResults);
+    }
+
+    @Override
+    public long renewLease(long roomId, IUserChat user) throws RemoteException {
+        return this.getRoom(roomId).renewLease(user);
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Gives every sender name a small integer id, so messages can refer to their sender without repeating the name.
+// Names come from clients, so the table is bounded: once MAX_IDS ids were handed out it starts over and the ids are
+// given to the names that send next. An id may thus name different senders over time, recipients send the name
+// again whenever the sender of an id changed.
+public class SenderTable {
+    public static final int NO_SENDER = -1;
+    static final int MAX_IDS = Integer.getInteger("chat.senders.maxIds", 65536);
+
+    private static ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private static AtomicInteger nextId = new AtomicInteger();
+
+    public static int intern(String senderName) {
+        if (senderName == null) {
+            return NO_SENDER;
+        }
+        while (true) {
+            Integer id = ids.get(senderName);
+            if (id != null) {
+                return id;
+            }
+            Integer newId = nextId.getAndIncrement();
+            if (newId < MAX_IDS) {
+                id = ids.putIfAbsent(senderName, newId);
+                return id != null ? id : newId;
+            }
+            synchronized (SenderTable.class) {
+                // Only the first thread to run out starts over
+                if (nextId.get() >= MAX_IDS) {
+                    ids.clear();
+                    nextId.set(0);
+                }
+            }
+        }
+    }
+}
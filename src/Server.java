@@ -1,20 +1,38 @@
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -24,11 +42,22 @@ import javax.swing.JFrame;
 import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 public class Server {
     public static void main(String[] args) {
+        if (args.length > 1 || (args.length == 1 && !args[0].equals("rmi") && !args[0].equals("nio"))) {
+            System.err.println("Pass \"nio\" to also push messages over the NIO transport, or nothing for RMI only");
+            return;
+        }
         System.out.println("The chat server is running...");
+        // Bounds every deliverMsg call so a dead client cannot hold a delivery worker forever
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", System.getProperty("chat.delivery.timeoutMillis", "5000"));
+        }
 
         try {
             int port = 2020;
@@ -36,10 +65,15 @@ public class Server {
 
             System.out.println("RMI registry created on port: " + port);
 
+            if (args.length == 1 && args[0].equals("nio")) {
+                NioPushServer.start(Integer.getInteger("chat.nio.port", 2021));
+            }
+
             ServerChat serverChat = new ServerChat(registry);
             IServerChat stub = (IServerChat) UnicastRemoteObject.exportObject(serverChat, 0);
 
             registry.bind("Servidor", stub);
+            registry.bind("ServidorHosts", UnicastRemoteObject.exportObject(new HostRegistry(serverChat), 0));
 
             System.out.println("Server is ready!");
         } catch (Exception e) {
@@ -49,66 +83,314 @@ public class Server {
     }
 
     public static class ServerChat implements  IServerChat {
-        private HashMap<String, RoomChat> roomList;
+        // Upper bound of a single getRooms page
+        static final int MAX_ROOM_PAGE = 1000;
+        // Ring name of the rooms hosted by this process, which takes part in the ring unless -Dchat.shard.local=false
+        static final String LOCAL_HOST = "local";
+        // How often registered room hosts are checked, a host that does not answer is removed from the ring
+        static final long HOST_CHECK_MILLIS = Long.getLong("chat.shard.checkMillis", 2000);
+        // Rooms are also bound in the registry under their name (RFA7) unless -Dchat.registry.bindRooms=false, in
+        // which case clients only find them through getRoom
+        static final boolean BIND_ROOMS = !"false".equals(System.getProperty("chat.registry.bindRooms"));
+        // How long a shutdown waits for the rooms to drain and the members to get the close notice
+        static final long SHUTDOWN_MILLIS = Long.getLong("chat.shutdown.timeoutMillis", RoomChat.CLOSE_DRAIN_MILLIS + 10000);
+        // Journals opened at once while recovering the rooms on startup
+        static final int RESTORE_THREADS = Integer.getInteger("chat.journal.restoreThreads",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+        // Sorted so that getRooms can page through the names starting with a prefix
+        private ConcurrentSkipListMap<String, RoomChat> roomList;
+        // Fixed dispatcher workers shared by every room, sized with -Dchat.dispatch.threads (defaults to the core count)
         private ExecutorService pool;
+        // Drains the per-recipient outboxes, one short task per burst of messages to a member
+        private ExecutorService deliveryPool;
         private Registry registry;
+        // Exported once, clients reach every local room through it
+        private RoomRouter router = new RoomRouter();
+        private AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+        private AtomicBoolean shuttingDown = new AtomicBoolean(false);
+        // Configurable with -Dchat.room.queueCapacity=N and -Dchat.room.backpressure=BLOCK|DROP_OLDEST|REJECT
+        private int queueCapacity = Integer.getInteger("chat.room.queueCapacity", 1024);
+        private BackpressurePolicy backpressurePolicy = BackpressurePolicy.valueOf(
+            System.getProperty("chat.room.backpressure", BackpressurePolicy.BLOCK.name()));
+        // Rooms and their messages are only persisted when started with -Dchat.journal.dir=path
+        private File journalDir = System.getProperty("chat.journal.dir") != null
+            ? new File(System.getProperty("chat.journal.dir")) : null;
+        private ScheduledExecutorService journalFlusher;
+        private ScheduledExecutorService metricsDumper;
+        // Sends the coalesced presence deltas of every room and the room directory deltas
+        private ScheduledExecutorService presenceTimer;
+        private RoomDirectory directory;
+        // Rooms placed on RoomHost processes, by name, and the hosts that registered
+        private ConcurrentSkipListMap<String, RemoteRoom> remoteRooms = new ConcurrentSkipListMap<String, RemoteRoom>();
+        private ConcurrentHashMap<String, IRoomHost> hosts = new ConcurrentHashMap<String, IRoomHost>();
+        private HashRing ring = new HashRing();
+        private ScheduledExecutorService hostMonitor;
 
-        private JFrame frame = new JFrame("Controller");
+        // Not created when running headless (-Djava.awt.headless=true), for example as a pure directory
+        private JFrame frame;
         private JPanel jPaneRoomList = new JPanel();
         private JScrollPane roomsPane = new JScrollPane(jPaneRoomList);
         private JButton closeRoomButton = new JButton("Close room");
+        private JTextArea metricsArea = new JTextArea(4, 40);
         private DefaultListModel<String> listModel;
         private JList<String> stringList;
         private String selectedRoomName;
 
         ServerChat(Registry registry) {
-            this.roomList = new HashMap<String, RoomChat>();
-            this.pool = Executors.newCachedThreadPool();
+            this.roomList = new ConcurrentSkipListMap<String, RoomChat>();
+            this.pool = Executors.newFixedThreadPool(
+                Integer.getInteger("chat.dispatch.threads", Runtime.getRuntime().availableProcessors()));
+            this.deliveryPool = Executors.newCachedThreadPool();
+            this.presenceTimer = Executors.newSingleThreadScheduledExecutor();
+            this.directory = new RoomDirectory(this.deliveryPool, this.presenceTimer);
+            Recipient.startLeaseSweeper(this.presenceTimer);
             this.registry = registry;
+            if ("false".equals(System.getProperty("chat.shard.local"))) {
+                Log.info("Rooms are only placed on registered room hosts");
+            } else {
+                this.ring.add(LOCAL_HOST);
+            }
             this.roomsPane.setBorder(BorderFactory.createTitledBorder("Rooms"));
-            this.frame.getContentPane().add(roomsPane, BorderLayout.CENTER);
-            this.frame.getContentPane().add(closeRoomButton, BorderLayout.PAGE_END);
-            this.frame.setMinimumSize(new Dimension(500, 500));
-            this.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            this.metricsArea.setEditable(false);
+            this.metricsArea.setBorder(BorderFactory.createTitledBorder("Metrics"));
+            if (!GraphicsEnvironment.isHeadless()) {
+                this.frame = new JFrame("Controller");
+                this.frame.getContentPane().add(roomsPane, BorderLayout.CENTER);
+                this.frame.getContentPane().add(closeRoomButton, BorderLayout.PAGE_END);
+                this.frame.getContentPane().add(metricsArea, BorderLayout.PAGE_START);
+                this.frame.setMinimumSize(new Dimension(500, 500));
+                // windowClosing exits once the rooms are closed
+                this.frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+            }
             this.stringList = new JList<String>();
             this.listModel = new DefaultListModel<>();
             stringList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
             
             this.addListeners();
+            // Also when stopped without the window, for example with Ctrl+C
+            Runtime.getRuntime().addShutdownHook(new Thread("shutdown-hook") {
+                public void run() {
+                    shutdown();
+                }
+            });
             this.refreshRooms();
+            this.startMetrics();
+            if (this.journalDir != null) {
+                this.startJournal();
+            }
         }
 
-        private void closeRoom(String roomName) {
-            if (!this.roomList.containsKey(roomName)) {
-                return;
+        // Forces the journals to disk every -Dchat.journal.flushMillis (group commit) and rebuilds the rooms
+        // that were open when the server stopped
+        private void startJournal() {
+            long flushMillis = Long.getLong("chat.journal.flushMillis", 50);
+            this.journalFlusher = Executors.newSingleThreadScheduledExecutor();
+            this.journalFlusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    for (RoomChat room : roomList.values()) {
+                        room.flushJournal();
+                    }
+                }
+            }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+
+            long start = System.nanoTime();
+            ArrayList<String> rooms = MessageJournal.listRooms(this.journalDir);
+            // Journaled rooms are recovered where their journal is, whatever the ring says. Recovery is mostly
+            // waiting for the disk, so several journals are read at once before the server is bound.
+            ExecutorService restorers = Executors.newFixedThreadPool(RESTORE_THREADS);
+            for (String roomName : rooms) {
+                final String restored = roomName;
+                restorers.execute(new Runnable() {
+                    public void run() {
+                        createLocalRoom(restored, true);
+                    }
+                });
+            }
+            restorers.shutdown();
+            try {
+                restorers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            System.out.println("Recovered " + this.roomList.size() + " of " + rooms.size() + " rooms from "
+                + this.journalDir + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
 
-            RoomChat room = this.roomList.get(roomName);
-            room.closeRoom();
-            this.roomList.remove(roomName);
+        // Exposes the metrics over JMX, shows them in the controller every second and logs a snapshot every
+        // -Dchat.metrics.dumpSeconds (60 by default, 0 turns the dump off)
+        private void startMetrics() {
+            final ChatMetrics metrics = ChatMetrics.getInstance();
+            metrics.register(this.roomList);
+
+            new Timer(1000, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    metricsArea.setText(metrics.getSnapshot());
+                }
+            }).start();
+
+            long dumpSeconds = Long.getLong("chat.metrics.dumpSeconds", 60);
+            if (dumpSeconds > 0) {
+                this.metricsDumper = Executors.newSingleThreadScheduledExecutor();
+                this.metricsDumper.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        Log.info("Metrics " + metrics.getSnapshot().replace('\n', ' '));
+                    }
+                }, dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+            }
+        }
+
+        void closeRoom(String roomName) {
+            this.closeRoom(roomName, false);
+        }
+
+        // Starts closing the room and returns it while it drains, null if it was not a local room. Remote rooms are
+        // closed by their host before this returns.
+        private RoomChat closeRoom(String roomName, boolean keepJournal) {
+            // Removing first makes sure only one caller closes the room
+            RoomChat room = roomName != null ? this.roomList.remove(roomName) : null;
+            if (room == null) {
+                this.closeRemoteRoom(roomName);
+                return null;
+            }
+
+            room.beginClose(keepJournal);
+            this.unlistLocalRoom(roomName, room);
+            return room;
+        }
+
+        // Takes a room already removed from roomList out of the directory, the router and the registry
+        private void unlistLocalRoom(String roomName, RoomChat room) {
+            this.directory.roomChanged(roomName, false);
+            this.router.unregister(room);
             refreshRooms();
+            this.unbindRoom(roomName);
+        }
+
+        // Closes every room at once and waits up to SHUTDOWN_MILLIS for them to drain, reporting the progress.
+        // The journals are kept, so the rooms come back on the next start.
+        void shutdown() {
+            if (!this.shuttingDown.compareAndSet(false, true)) {
+                return;
+            }
+            long start = System.nanoTime();
+            final ArrayList<RoomChat> closing = new ArrayList<RoomChat>();
+            for (String roomName : this.roomList.keySet()) {
+                RoomChat room = this.closeRoom(roomName, true);
+                if (room != null) {
+                    closing.add(room);
+                }
+            }
+            // Each of these waits on its host
+            final AtomicInteger remoteLeft = new AtomicInteger();
+            for (String roomName : this.remoteRooms.keySet()) {
+                final String remoteRoom = roomName;
+                remoteLeft.incrementAndGet();
+                this.deliveryPool.execute(new Runnable() {
+                    public void run() {
+                        closeRemoteRoom(remoteRoom);
+                        remoteLeft.decrementAndGet();
+                    }
+                });
+            }
+            int total = closing.size() + remoteLeft.get();
+            System.out.println("Shutting down, closing " + total + " rooms");
+
+            long deadline = start + SHUTDOWN_MILLIS * 1000000;
+            while (true) {
+                int open = remoteLeft.get();
+                int waiting = 0;
+                for (RoomChat room : closing) {
+                    if (!room.isClosed()) {
+                        open++;
+                        waiting += room.getCloseNoticesLeft();
+                    }
+                }
+                this.reportShutdown((total - open) + " of " + total + " rooms closed, "
+                    + waiting + " members waiting for the close notice");
+                if (open == 0 || System.nanoTime() > deadline) {
+                    break;
+                }
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            // Rooms that did not finish still keep what they journaled so far
+            for (RoomChat room : closing) {
+                room.flushJournal();
+            }
+            System.out.println("Shut down in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+
+        private void reportShutdown(final String progress) {
+            System.out.println("Shutdown: " + progress);
+            if (this.frame != null) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        frame.setTitle("Controller - shutting down: " + progress);
+                    }
+                });
+            }
+        }
+
+        private void unbindRoom(String roomName) {
+            if (!BIND_ROOMS) {
+                return;
+            }
             try {
                 this.registry.unbind(roomName);
             } catch (Exception e) {
                 System.err.println("Error while closing room \"" + roomName + "\": " + e.toString());
-                e.printStackTrace();
             }
         }
 
+        private void closeRemoteRoom(String roomName) {
+            RemoteRoom room = roomName != null ? this.remoteRooms.remove(roomName) : null;
+            if (room == null) {
+                return;
+            }
+
+            this.directory.roomChanged(roomName, false);
+            IRoomHost host = this.hosts.get(room.hostId);
+            try {
+                if (host != null) {
+                    host.closeRoom(roomName);
+                }
+            } catch (RemoteException e) {
+                System.err.println("Error while closing room \"" + roomName + "\" on host " + room.hostId + ": " + e.toString());
+            }
+            refreshRooms();
+            this.unbindRoom(roomName);
+        }
+
         private void addListeners() {
-            this.frame.addWindowListener(new WindowAdapter() {
-                public void windowClosing(WindowEvent ev) {
-                    for (Map.Entry<String, RoomChat> entry: roomList.entrySet()) {
-                        closeRoom(entry.getKey());
+            if (this.frame != null) {
+                this.frame.addWindowListener(new WindowAdapter() {
+                    public void windowClosing(WindowEvent ev) {
+                        // The window stays up showing the progress, the Swing thread must not wait for the rooms
+                        closeRoomButton.setEnabled(false);
+                        new Thread("shutdown") {
+                            public void run() {
+                                shutdown();
+                                System.exit(0);
+                            }
+                        }.start();
                     }
-                    frame.setVisible(false);
-                    frame.dispose();
-                }
-            });
+                });
+            }
 
             closeRoomButton.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
-                    closeRoom(selectedRoomName);
+                    // Unbinding and closing a room on its host are remote calls, kept off the Swing thread
+                    final String roomName = selectedRoomName;
+                    deliveryPool.execute(new Runnable() {
+                        public void run() {
+                            closeRoom(roomName);
+                        }
+                    });
                 }
             });
 
@@ -129,116 +411,957 @@ public class Server {
             jPaneRoomList.add(scrollPane);
             jPaneRoomList.setLayout(new BoxLayout(jPaneRoomList, BoxLayout.PAGE_AXIS));
 
-            this.frame.setVisible(true);
+            if (this.frame != null) {
+                this.frame.setVisible(true);
+            }
     }
 
+        // Rooms are created from RMI threads, so the list model is only ever touched from the Swing thread. Rooms
+        // created or closed while a refresh is pending are picked up by that refresh, so creating rooms in bulk
+        // rebuilds the list a few times instead of once per room.
         private void refreshRooms() {
-            this.listModel.clear();
-            if (this.roomList.size() > 0) {
-                int i = 0;
-                for (String roomName : this.roomList.keySet()) {
-                    this.listModel.add(i, roomName);
-                    i++;
+            if (this.frame == null || !this.refreshScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    refreshScheduled.set(false);
+                    // Filled before the list sees it, so adding rooms fires no events
+                    DefaultListModel<String> model = new DefaultListModel<String>();
+                    for (String roomName : roomList.keySet()) {
+                        model.addElement(roomName);
+                    }
+                    for (Map.Entry<String, RemoteRoom> room : remoteRooms.entrySet()) {
+                        model.addElement(room.getKey() + " @" + room.getValue().hostId);
+                    }
+                    listModel = model;
+                    stringList.setModel(model);
                 }
+            });
+        }
+
+        @Override
+        public ArrayList<String> getRooms() {
+            ArrayList<String> rooms = new ArrayList<String>(this.roomList.keySet());
+            rooms.addAll(this.remoteRooms.keySet());
+            return rooms;
+        }
+
+        @Override
+        public ArrayList<String> getRooms(String prefix, String afterRoom, int maxRooms) {
+            String from = prefix == null ? "" : prefix;
+            int max = Math.min(Math.max(maxRooms, 0), MAX_ROOM_PAGE);
+            // Each map gives at most a page, the first max of their union is the page across both
+            TreeSet<String> rooms = new TreeSet<String>();
+            pageRooms(this.roomList, from, afterRoom, max, rooms);
+            pageRooms(this.remoteRooms, from, afterRoom, max, rooms);
+            ArrayList<String> page = new ArrayList<String>();
+            for (String roomName : rooms) {
+                if (page.size() == max) {
+                    break;
+                }
+                page.add(roomName);
             }
+            return page;
+        }
 
-            this.stringList.setModel(listModel);
+        private static void pageRooms(NavigableMap<String, ?> roomMap, String prefix, String afterRoom, int max,
+                TreeSet<String> page) {
+            NavigableMap<String, ?> rooms = afterRoom != null && afterRoom.compareTo(prefix) >= 0
+                ? roomMap.tailMap(afterRoom, false) : roomMap.tailMap(prefix, true);
+            int added = 0;
+            for (String roomName : rooms.keySet()) {
+                if (added == max || !roomName.startsWith(prefix)) {
+                    break;
+                }
+                page.add(roomName);
+                added++;
+            }
         }
 
         @Override
-        public ArrayList<String> getRooms() {
-            return new ArrayList<String>(this.roomList.keySet());
+        public IRoomChat getRoom(String roomName) {
+            RoomChat room = this.roomList.get(roomName);
+            if (room != null && room.getHandle() != null) {
+                return room.getHandle();
+            }
+            RemoteRoom remoteRoom = this.remoteRooms.get(roomName);
+            return remoteRoom != null ? remoteRoom.stub : null;
+        }
+
+        @Override
+        public ArrayList<ChatMessage> searchMessages(String roomName, String terms, String senderName, long fromTime,
+                long toTime, int maxResults) throws RemoteException {
+            IRoomChat room = this.getRoom(roomName);
+            if (room == null) {
+                throw new RemoteException("Room \"" + roomName + "\" does not exist");
+            }
+            return room.search(terms, senderName, fromTime, toTime, maxResults);
+        }
+
+        void registerHost(String hostId, IRoomHost host) throws RemoteException {
+            if (hostId.equals(LOCAL_HOST)) {
+                throw new RemoteException("\"" + LOCAL_HOST + "\" is reserved for the rooms of the directory itself");
+            }
+            this.hosts.put(hostId, host);
+            this.ring.add(hostId);
+            Log.info("Room host " + hostId + " joined, " + this.hosts.size() + " remote hosts");
+            synchronized (this) {
+                if (this.hostMonitor == null) {
+                    this.hostMonitor = Executors.newSingleThreadScheduledExecutor();
+                    this.hostMonitor.scheduleWithFixedDelay(new Runnable() {
+                        public void run() {
+                            checkHosts();
+                        }
+                    }, HOST_CHECK_MILLIS, HOST_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+            final String newHost = hostId;
+            this.hostMonitor.execute(new Runnable() {
+                public void run() {
+                    moveEmptyRooms(newHost);
+                }
+            });
+        }
+
+        void unregisterHost(String hostId) {
+            if (this.hosts.remove(hostId) == null) {
+                return;
+            }
+            this.ring.remove(hostId);
+            Log.info("Room host " + hostId + " left, " + this.hosts.size() + " remote hosts");
+            // Its rooms are gone with it, they are created again on the hosts that own them now
+            for (Map.Entry<String, RemoteRoom> room : this.remoteRooms.entrySet()) {
+                if (room.getValue().hostId.equals(hostId) && this.remoteRooms.remove(room.getKey(), room.getValue())) {
+                    if (BIND_ROOMS) {
+                        try {
+                            this.registry.unbind(room.getKey());
+                        } catch (Exception e) {
+                            // Never bound
+                        }
+                    }
+                    this.createRoom(room.getKey());
+                }
+            }
+        }
+
+        private void checkHosts() {
+            for (Map.Entry<String, IRoomHost> host : this.hosts.entrySet()) {
+                try {
+                    host.getValue().getRoomCount();
+                } catch (RemoteException e) {
+                    Log.warn("Room host " + host.getKey() + " does not answer: " + e.toString());
+                    this.unregisterHost(host.getKey());
+                }
+            }
+        }
+
+        // Rooms the ring now gives to a new host move there while nobody is in them, rooms in use stay where they are.
+        // Journaled rooms stay as well, a moved room starts out empty on its new host. Each room checks that it is
+        // empty and starts closing in one step, so a member joining meanwhile keeps it here.
+        private void moveEmptyRooms(String hostId) {
+            int moved = 0;
+            for (Map.Entry<String, RoomChat> room : this.roomList.entrySet()) {
+                RoomChat local = room.getValue();
+                if (!hostId.equals(this.ring.getHost(room.getKey())) || local.hasJournal() || !local.closeIfEmpty()) {
+                    continue;
+                }
+                if (this.roomList.remove(room.getKey(), local)) {
+                    this.unlistLocalRoom(room.getKey(), local);
+                    this.createRoom(room.getKey());
+                    moved++;
+                }
+            }
+            for (Map.Entry<String, RemoteRoom> room : this.remoteRooms.entrySet()) {
+                IRoomHost host = this.hosts.get(room.getValue().hostId);
+                if (host == null || !hostId.equals(this.ring.getHost(room.getKey())) || room.getValue().hostId.equals(hostId)) {
+                    continue;
+                }
+                try {
+                    if (host.closeRoomIfEmpty(room.getKey()) && this.remoteRooms.remove(room.getKey(), room.getValue())) {
+                        this.directory.roomChanged(room.getKey(), false);
+                        refreshRooms();
+                        this.unbindRoom(room.getKey());
+                        this.createRoom(room.getKey());
+                        moved++;
+                    }
+                } catch (RemoteException e) {
+                    Log.warn("Error while moving room \"" + room.getKey() + "\": " + e.toString());
+                }
+            }
+            Log.info("Moved " + moved + " empty rooms to room host " + hostId);
+        }
+
+        @Override
+        public long subscribeRooms(IUserChat user) {
+            return this.directory.subscribe(user);
+        }
+
+        @Override
+        public void unsubscribeRooms(IUserChat user) {
+            this.directory.unsubscribe(user);
         }
 
         @Override
         public void createRoom(String roomName) {
+            if (this.shuttingDown.get()) {
+                System.err.println("Error while creating room \"" + roomName + "\": the server is shutting down");
+                return;
+            }
+            if (this.roomList.containsKey(roomName) || this.remoteRooms.containsKey(roomName)) {
+                System.err.println("Error while creating room: \"" + roomName + "\" already exists");
+                return;
+            }
+            String hostId = this.ring.getHost(roomName);
+            if (hostId == null) {
+                System.err.println("Error while creating room: no room host available for \"" + roomName + "\"");
+            } else if (hostId.equals(LOCAL_HOST)) {
+                this.createLocalRoom(roomName, false);
+            } else {
+                this.createRemoteRoom(roomName, hostId);
+            }
+        }
+
+        private void createRemoteRoom(String roomName, String hostId) {
+            RemoteRoom room = new RemoteRoom(hostId);
+            if (this.remoteRooms.putIfAbsent(roomName, room) != null) {
+                System.err.println("Error while creating room: \"" + roomName + "\" already exists");
+                return;
+            }
             try {
-                RoomChat room = new RoomChat(roomName);
-                IRoomChat roomStub = (IRoomChat) UnicastRemoteObject.exportObject(room, 0);
-                registry.bind(roomName, roomStub);
-                this.roomList.put(roomName, room);
-                pool.execute(room);
+                IRoomHost host = this.hosts.get(hostId);
+                if (host == null) {
+                    throw new RemoteException("Room host " + hostId + " is gone");
+                }
+                room.stub = host.createRoom(roomName);
+                // Also bound here, so clients looking rooms up in the registry find them wherever they are
+                if (BIND_ROOMS) {
+                    this.registry.bind(roomName, room.stub);
+                }
+                System.out.println("Created room: " + roomName + " on host " + hostId);
+                this.directory.roomChanged(roomName, true);
                 refreshRooms();
             } catch (Exception e) {
+                this.remoteRooms.remove(roomName, room);
+                if (room.stub != null) {
+                    try {
+                        this.hosts.get(hostId).closeRoom(roomName);
+                    } catch (Exception closeException) {
+                        // The host is gone as well
+                    }
+                }
                 System.err.println("Error while creating room: " + e.toString());
+            }
+        }
+
+        // Restored rooms are not logged one by one, startJournal reports how many came back
+        private void createLocalRoom(String roomName, boolean restored) {
+            RoomChat room = new RoomChat(roomName, queueCapacity, backpressurePolicy, pool, deliveryPool, presenceTimer);
+            // Claim the name before touching the registry so racing clients cannot bind the same room twice
+            if (this.roomList.putIfAbsent(roomName, room) != null) {
+                System.err.println("Error while creating room: \"" + roomName + "\" already exists");
+                return;
+            }
+            try {
+                if (this.journalDir != null) {
+                    room.attachJournal(MessageJournal.open(this.journalDir, roomName, RoomChat.HISTORY_SIZE));
+                }
+                // Reachable from here on, getRoom hands out no handle before
+                this.router.register(room);
+                if (BIND_ROOMS) {
+                    this.registry.bind(roomName, room.getHandle());
+                }
+                if (!restored) {
+                    System.out.println("Created room: " + roomName);
+                }
+                this.directory.roomChanged(roomName, true);
+                refreshRooms();
+            } catch (Exception e) {
+                this.roomList.remove(roomName, room);
+                this.router.unregister(room);
+                if (!restored) {
+                    // A journal that cannot be recovered is kept for a look at what went wrong
+                    room.deleteJournal();
+                }
+                System.err.println("Error while creating room \"" + roomName + "\": " + e.toString());
                 e.printStackTrace();
             }
         }
     }
 
-    private static class RoomChat implements Runnable, IRoomChat {
-        private HashMap<String, IUserChat> userList;
+    // The calls of RoomHost processes to the directory, exported apart from it
+    static class HostRegistry implements IHostRegistry {
+        private ServerChat directory;
+
+        HostRegistry(ServerChat directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void registerHost(String hostId, IRoomHost host) throws RemoteException {
+            this.directory.registerHost(hostId, host);
+        }
+
+        @Override
+        public void unregisterHost(String hostId) {
+            this.directory.unregisterHost(hostId);
+        }
+    }
+
+    // A room living in a RoomHost process
+    static class RemoteRoom {
+        private String hostId;
+        // Null until the host created it
+        private volatile IRoomChat stub;
+
+        RemoteRoom(String hostId) {
+            this.hostId = hostId;
+        }
+    }
+
+    // Rooms do not own a thread, a room is scheduled on the shared dispatcher pool only while it has queued messages
+    static class RoomChat implements Runnable, IRoomChat {
+        // How many messages a room dispatches before giving its worker to the next scheduled room
+        static final int DISPATCH_QUANTUM = Integer.getInteger("chat.dispatch.quantum", 64);
+        // How many of the last messages every room keeps for joining and reconnecting users
+        static final int HISTORY_SIZE = Integer.getInteger("chat.room.historySize", 256);
+        // Upper bound of a single getHistory page
+        static final int MAX_HISTORY_PAGE = 1024;
+        // Joins and leaves within this interval reach the members as one presence delta
+        static final long PRESENCE_INTERVAL_MILLIS = Long.getLong("chat.presence.intervalMillis", 250);
+        // Token bucket limits of sendMsg for every sender in a room and for the room as a whole (messages per
+        // second and burst size), a rate of 0 turns the limit off
+        static final double USER_RATE = Double.parseDouble(System.getProperty("chat.limit.userRate", "50"));
+        static final int USER_BURST = Integer.getInteger("chat.limit.userBurst", 100);
+        static final double ROOM_RATE = Double.parseDouble(System.getProperty("chat.limit.roomRate", "5000"));
+        static final int ROOM_BURST = Integer.getInteger("chat.limit.roomBurst", 10000);
+        // A sender over a limit waits up to this long for a token instead of being rejected right away
+        static final long LIMIT_MAX_DELAY_MILLIS = Long.getLong("chat.limit.maxDelayMillis", 0);
+        // How long a closing room waits for its queued messages and close notices to reach the members, those that
+        // are not there by then get the notice right away and lose the rest
+        static final long CLOSE_DRAIN_MILLIS = Long.getLong("chat.room.closeDrainMillis", 5000);
+        static final String CLOSE_NOTICE = "Sala fechada pelo servidor.";
+
+        // Writes are serialized per room on userList, readers use the members snapshot without locking
+        private ConcurrentHashMap<String, Recipient> userList;
+        private volatile Recipient[] members = new Recipient[0];
         private String roomName;
-        private LinkedList<Pair<String, String>> messageFifo;
-        private boolean shouldCloseRoom = false;
-        RoomChat(String roomName) {
+        private ExecutorService dispatchPool;
+        private ExecutorService deliveryPool;
+        private ScheduledExecutorService presenceTimer;
+        private BlockingQueue<ChatMessage> messageFifo;
+        private BackpressurePolicy backpressurePolicy;
+        private AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile boolean shouldCloseRoom = false;
+        // Set by beginClose, the queue still drains but new messages and members are refused
+        private volatile boolean closing = false;
+        private boolean keepJournal = false;
+        private long closeStart;
+        // Members whose close notice was not sent yet, whoever removes a member sends it (or gives up on it)
+        private Set<Recipient> closePending = ConcurrentHashMap.newKeySet();
+        private AtomicInteger closeNoticesLeft = new AtomicInteger();
+        private AtomicBoolean closeNoticesQueued = new AtomicBoolean(false);
+        private AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> closeDeadline;
+        // Set when the room is registered with the router of its process, the handle is made on first use
+        private long roomId;
+        private volatile IRoomRouter router;
+        private String pushAddress;
+        private volatile RoomHandle handle;
+        // Only touched by the worker currently running the room
+        private long nextSeq = 1;
+        private MessageHistory history = new MessageHistory(HISTORY_SIZE);
+        private volatile MessageJournal journal;
+        // Null when search is turned off
+        private MessageIndex index;
+        private ChatMetrics metrics = ChatMetrics.getInstance();
+        // Whether each user that joined or left since the last presence flush was a member before, guarded by userList
+        private HashMap<String, Boolean> presenceBefore = new HashMap<String, Boolean>();
+        private HashSet<String> evictedSinceFlush = new HashSet<String>();
+        private AtomicBoolean presenceScheduled = new AtomicBoolean(false);
+        private TokenBucket roomBucket = ROOM_RATE > 0 ? new TokenBucket(ROOM_RATE, ROOM_BURST) : null;
+
+        // Dispatch statistics, the latency is measured from sendMsg/leaveRoom until the message is taken by run()
+        private AtomicLong droppedMessages = new AtomicLong();
+        private AtomicLong rejectedMessages = new AtomicLong();
+        private AtomicLong userLimitedMessages = new AtomicLong();
+        private AtomicLong roomLimitedMessages = new AtomicLong();
+        private volatile long dispatchedMessages = 0;
+        private volatile long totalDispatchLatency = 0;
+        private volatile long maxDispatchLatency = 0;
+
+        RoomChat(String roomName, int queueCapacity, BackpressurePolicy backpressurePolicy,
+                ExecutorService dispatchPool, ExecutorService deliveryPool, ScheduledExecutorService presenceTimer) {
             this.roomName = roomName;
-            this.userList = new HashMap<String, IUserChat>();
-            this.messageFifo = new LinkedList<Pair<String, String>>();
+            this.dispatchPool = dispatchPool;
+            this.deliveryPool = deliveryPool;
+            this.presenceTimer = presenceTimer;
+            this.userList = new ConcurrentHashMap<String, Recipient>();
+            // Linked so that idle rooms do not preallocate their whole capacity
+            this.messageFifo = new LinkedBlockingQueue<ChatMessage>(queueCapacity);
+            this.backpressurePolicy = backpressurePolicy;
+            this.index = MessageIndex.MAX_MESSAGES > 0 ? new MessageIndex(roomName) : null;
         }
 
         @Override
         public void run() {
-            System.out.println("Running Room Chat: " + this.roomName);
+            // Dispatch at most one quantum and then go to the back of the pool queue, so a busy room
+            // takes turns with the quiet ones instead of holding a worker
+            int dispatched = 0;
+            ChatMessage message;
             try {
-                while (!this.shouldCloseRoom) {
-                    Pair<String, String> messagePair;
-                    synchronized(this.messageFifo) {
-                        messagePair = this.messageFifo.poll(); 
+                while (!this.shouldCloseRoom && dispatched < DISPATCH_QUANTUM && (message = this.messageFifo.poll()) != null) {
+                    long latency = System.nanoTime() - message.enqueuedAt;
+                    this.metrics.dispatchedMessages.increment();
+                    this.metrics.enqueueToDispatch.record(latency);
+                    this.dispatchedMessages++;
+                    this.totalDispatchLatency += latency;
+                    if (latency > this.maxDispatchLatency) {
+                        this.maxDispatchLatency = latency;
+                    }
+                    message.seq = this.nextSeq++;
+                    this.history.add(message);
+                    this.appendToJournal(message);
+                    if (this.index != null) {
+                        this.index.add(message);
+                    }
+                    // Encode once here instead of once per recipient when the batches are serialized
+                    message.encode();
+                    if (Log.isEnabled(Log.DEBUG)) {
+                        Log.debug("Propagating message pair: " + message.toString());
                     }
-                    if (messagePair != null) {
-                        System.out.println("Propagating message pair: " + messagePair.toString());
 
-                        // We guarantee that we deliver messages in order because we remove it from our FIFO queue in order
-                        for (IUserChat user: this.userList.values()) {
-                            user.deliverMsg(messagePair.first, messagePair.second);
-                        }
+                    // We guarantee that we deliver messages in order because we remove it from our FIFO queue in order,
+                    // only one worker runs a room at a time and every recipient delivers its own queue in order
+                    for (Recipient recipient: this.members) {
+                        recipient.enqueue(message);
                     }
+                    dispatched++;
                 }
-            } catch (Exception e) {
-                System.out.println("Error:" + e.toString());
-                e.printStackTrace();
+            } finally {
+                // Cleared even if a message threw, otherwise the room would never be scheduled again
+                this.scheduled.set(false);
+                // A message may have arrived after our last poll but before we cleared the flag
+                if (!this.shouldCloseRoom && !this.messageFifo.isEmpty()) {
+                    this.schedule();
+                } else if (this.closing && this.messageFifo.isEmpty()) {
+                    // Everything sent before the close is in the outboxes now, the notices go behind it
+                    this.queueCloseNotices();
+                }
+            }
+        }
+
+        // Continues the sequence and the history of a journaled room, must be called before the room is exported
+        void attachJournal(MessageJournal journal) {
+            this.journal = journal;
+            this.nextSeq = journal.getLastSeq() + 1;
+            for (ChatMessage message : journal.getRecovered()) {
+                this.history.add(message);
+            }
+            if (this.index != null) {
+                this.index.attachJournal(journal);
+            }
+        }
+
+        private void appendToJournal(ChatMessage message) {
+            MessageJournal journal = this.journal;
+            if (journal == null) {
+                return;
+            }
+            try {
+                journal.append(message);
+            } catch (IOException e) {
+                // Keep the room running, it just stops being persisted
+                Log.error("Error while journaling room \"" + this.roomName + "\", journal disabled: " + e.toString());
+                this.journal = null;
+            }
+        }
+
+        void flushJournal() {
+            MessageJournal journal = this.journal;
+            if (journal != null) {
+                journal.flush();
+            }
+        }
+
+        boolean hasJournal() {
+            return this.journal != null;
+        }
+
+        void deleteJournal() {
+            MessageJournal journal = this.journal;
+            this.journal = null;
+            if (journal != null) {
+                journal.delete();
+            }
+        }
+
+        private void schedule() {
+            if (this.scheduled.compareAndSet(false, true)) {
+                this.dispatchPool.execute(this);
+            }
+        }
+
+        // Adds a message to our FIFO queue following the backpressure policy, returns false if it was rejected
+        private boolean enqueue(ChatMessage message) throws RemoteException {
+            switch (this.backpressurePolicy) {
+                case BLOCK:
+                    // Wake the dispatcher before waiting, otherwise a full queue may have nobody draining it
+                    if (!this.messageFifo.offer(message)) {
+                        this.schedule();
+                        try {
+                            this.messageFifo.put(message);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RemoteException("Interrupted while waiting for room \"" + this.roomName + "\"");
+                        }
+                    }
+                    this.metrics.acceptedMessages.increment();
+                    this.schedule();
+                    return true;
+                case DROP_OLDEST:
+                    while (!this.messageFifo.offer(message)) {
+                        if (this.messageFifo.poll() != null) {
+                            this.droppedMessages.incrementAndGet();
+                            this.metrics.droppedMessages.increment();
+                        }
+                    }
+                    this.metrics.acceptedMessages.increment();
+                    this.schedule();
+                    return true;
+                default:
+                    if (this.messageFifo.offer(message)) {
+                        this.metrics.acceptedMessages.increment();
+                        this.schedule();
+                        return true;
+                    }
+                    this.rejectedMessages.incrementAndGet();
+                    this.metrics.rejectedMessages.increment();
+                    return false;
             }
         }
 
+        public int getQueueDepth() {
+            return this.messageFifo.size();
+        }
+
+        public int getMemberCount() {
+            return this.members.length;
+        }
+
+        public String getStats() {
+            long dispatched = this.dispatchedMessages;
+            long averageLatency = dispatched > 0 ? this.totalDispatchLatency / dispatched : 0;
+            return "[queued=" + this.messageFifo.size()
+                + " dispatched=" + dispatched
+                + " dropped=" + this.droppedMessages.get()
+                + " rejected=" + this.rejectedMessages.get()
+                + " userLimited=" + this.userLimitedMessages.get()
+                + " roomLimited=" + this.roomLimitedMessages.get()
+                + " avgLatencyUs=" + averageLatency / 1000
+                + " maxLatencyUs=" + this.maxDispatchLatency / 1000 + "]";
+        }
+
         @Override
-        public void sendMsg(String usrName, String msg) {
+        public void sendMsg(String usrName, String msg) throws RemoteException {
+            // The dispatcher encodes, journals and indexes the text, it has to be there
+            if (msg == null) {
+                throw new RemoteException("Message to room \"" + this.roomName + "\" has no text, message rejected");
+            }
+            if (this.closing) {
+                throw new RemoteException("Room \"" + this.roomName + "\" is closing, message rejected");
+            }
+            this.admit(usrName);
             // Add the message to our FIFO queue so it can be delivered to uers
-            synchronized(this.messageFifo) {
-                this.messageFifo.add(new Pair<String, String>(usrName, msg));
+            ChatMessage message = new ChatMessage(usrName, msg);
+            message.roomName = this.roomName;
+            if (!this.enqueue(message)) {
+                throw new RemoteException("Room \"" + this.roomName + "\" is full, message rejected");
+            }
+        }
+
+        // Only members may send. Checks the sender's limit, kept with its membership, before the room's, so a user
+        // over its own limit does not use up the room's tokens.
+        private void admit(String usrName) throws RemoteException {
+            Recipient recipient = this.userList.get(usrName);
+            if (recipient == null) {
+                throw new RemoteException("User \"" + usrName + "\" is not in room \"" + this.roomName + "\", message rejected");
+            }
+            TokenBucket bucket = recipient.getSendBucket(this);
+            if (bucket != null) {
+                long wait = acquire(bucket);
+                if (wait > 0) {
+                    this.userLimitedMessages.incrementAndGet();
+                    this.metrics.userLimitedMessages.increment();
+                    throw new RateLimitedException("User \"" + usrName + "\" is sending too fast to room \""
+                        + this.roomName + "\", message rejected", wait / 1000000 + 1);
+                }
+            }
+            if (this.roomBucket != null) {
+                long wait = acquire(this.roomBucket);
+                if (wait > 0) {
+                    this.roomLimitedMessages.incrementAndGet();
+                    this.metrics.roomLimitedMessages.increment();
+                    throw new RateLimitedException("Room \"" + this.roomName + "\" is over its message rate, message rejected",
+                        wait / 1000000 + 1);
+                }
             }
         }
 
+        // Returns 0 once a token was taken, waiting for it if that takes less than LIMIT_MAX_DELAY_MILLIS
+        private static long acquire(TokenBucket bucket) {
+            long wait = bucket.tryAcquire();
+            if (wait > 0 && wait <= LIMIT_MAX_DELAY_MILLIS * 1000000) {
+                LockSupport.parkNanos(wait);
+                wait = bucket.tryAcquire();
+            }
+            return wait;
+        }
+
         @Override
-        public void joinRoom(String usrName, IUserChat user) {
-            this.userList.put(usrName, user);
+        public void joinRoom(String usrName, IUserChat user) throws RemoteException {
+            if (this.closing) {
+                throw new RemoteException("Room \"" + this.roomName + "\" is closing");
+            }
+            if (user instanceof NioUserRef) {
+                // Refused now rather than evicted after failed deliveries
+                ((NioUserRef) user).checkSession();
+            }
+            // A client in several rooms of this process gets all of them through the same recipient
+            Recipient recipient = Recipient.join(usrName, user, this, this.history.getLastSeq() + 1, this.deliveryPool);
+            Recipient previous = null;
+            boolean refused;
+            synchronized (this.userList) {
+                // The room may have started closing since the check above. A member joining again keeps its
+                // membership for the close notice, anybody else gets theirs taken back.
+                refused = this.closing && this.userList.get(usrName) != recipient;
+                if (!refused) {
+                    previous = this.userList.put(usrName, recipient);
+                    this.presenceBefore.putIfAbsent(usrName, previous != null);
+                    this.refreshMembers();
+                }
+            }
+            if (refused) {
+                recipient.leave(this);
+                throw new RemoteException("Room \"" + this.roomName + "\" is closing");
+            }
+            // The same name joining again from another client
+            if (previous != null && previous != recipient) {
+                previous.leave(this);
+            }
+            this.schedulePresence();
         }
 
         @Override
-        public void leaveRoom(String usrName) {
-            this.userList.remove(usrName);
-            System.out.println("Removed user: " + usrName);
+        public void leaveRoom(String usrName) throws RemoteException {
+            Recipient recipient;
+            synchronized (this.userList) {
+                recipient = this.userList.remove(usrName);
+                if (recipient == null) {
+                    return;
+                }
+                this.presenceBefore.putIfAbsent(usrName, true);
+                this.evictedSinceFlush.remove(usrName);
+                this.refreshMembers();
+            }
+            recipient.leave(this);
+            this.releaseCloseNotice(recipient);
+            Log.info("Removed user: " + usrName);
             // Notify all users that someone has left
-            this.messageFifo.add(new Pair<String, String>(usrName, "Has left the room"));
+            this.schedulePresence();
+        }
+
+        // Must be called holding the userList lock
+        private void refreshMembers() {
+            this.members = this.userList.values().toArray(new Recipient[0]);
+        }
+
+        // Called by a Recipient that kept failing, only removes it if the user has not joined again since
+        void evictUser(String usrName, Recipient recipient) {
+            synchronized (this.userList) {
+                if (!this.userList.remove(usrName, recipient)) {
+                    return;
+                }
+                this.presenceBefore.putIfAbsent(usrName, true);
+                this.evictedSinceFlush.add(usrName);
+                this.refreshMembers();
+            }
+            this.releaseCloseNotice(recipient);
+            Log.info("Evicted user: " + usrName);
+            this.schedulePresence();
+        }
+
+        private void schedulePresence() {
+            if (this.presenceScheduled.compareAndSet(false, true)) {
+                this.presenceTimer.schedule(new Runnable() {
+                    public void run() {
+                        flushPresence();
+                    }
+                }, PRESENCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
         }
 
+        // Sends the net membership changes of the last interval to every member with one delta, so a burst of
+        // joins and leaves costs one delivery per member instead of one per change and member
+        private void flushPresence() {
+            PresenceDelta delta = new PresenceDelta(this.roomName);
+            Recipient[] members;
+            synchronized (this.userList) {
+                this.presenceScheduled.set(false);
+                for (Map.Entry<String, Boolean> before : this.presenceBefore.entrySet()) {
+                    String usrName = before.getKey();
+                    boolean member = this.userList.containsKey(usrName);
+                    if (member != before.getValue()) {
+                        delta.put(usrName, member ? PresenceDelta.JOINED
+                            : this.evictedSinceFlush.contains(usrName) ? PresenceDelta.EVICTED : PresenceDelta.LEFT);
+                    }
+                }
+                this.presenceBefore.clear();
+                this.evictedSinceFlush.clear();
+                members = this.members;
+            }
+            if (delta.isEmpty() || this.shouldCloseRoom) {
+                return;
+            }
+            for (Recipient member : members) {
+                member.enqueuePresence(delta);
+            }
+        }
+
+        // Only the server closes rooms (RFA13), through ServerChat.closeRoom or the room's host. Clients holding a
+        // handle of the room must not be able to close it and delete its journal.
         @Override
-        public void closeRoom() {
-            System.out.println("Close room: " + this.roomName);
+        public void closeRoom() throws RemoteException {
+            throw new RemoteException("Room \"" + this.roomName + "\" can only be closed by the server");
+        }
+
+        // Refuses new messages and members and lets the queued messages reach the members, each of them followed by
+        // the close notice. The room is closed once every member got its notice or CLOSE_DRAIN_MILLIS passed.
+        // A room closed by the server is gone for good and its journal deleted, unless keepJournal is set because
+        // the whole server is shutting down.
+        void beginClose(boolean keepJournal) {
+            synchronized (this.userList) {
+                if (this.closing) {
+                    return;
+                }
+                this.closing = true;
+                this.keepJournal = keepJournal;
+            }
+            this.drain(keepJournal);
+        }
+
+        // beginClose for a room nobody is in, false if it has members or is already closing. Checked under the same
+        // lock joinRoom adds members with, so a join either comes first and keeps the room open or is refused.
+        boolean closeIfEmpty() {
+            synchronized (this.userList) {
+                if (this.closing || !this.userList.isEmpty()) {
+                    return false;
+                }
+                this.closing = true;
+                this.keepJournal = false;
+            }
+            this.drain(false);
+            return true;
+        }
+
+        private void drain(boolean keepJournal) {
+            this.closeStart = System.nanoTime();
+            System.out.println("Close room: " + this.roomName + " " + this.getStats());
+            if (!keepJournal) {
+                // Right away, a room created again with the same name must not find it
+                this.deleteJournal();
+            }
+            this.closeDeadline = this.presenceTimer.schedule(new Runnable() {
+                public void run() {
+                    forceClose();
+                }
+            }, CLOSE_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+            // The dispatcher queues the notices once the queue is empty, which it may already be
+            this.schedule();
+        }
+
+        private void queueCloseNotices() {
+            if (!this.closeNoticesQueued.compareAndSet(false, true)) {
+                return;
+            }
+            Recipient[] members;
+            synchronized (this.userList) {
+                members = this.members;
+                // Counted before any of them can finish
+                this.closeNoticesLeft.set(members.length + 1);
+                for (Recipient recipient : members) {
+                    this.closePending.add(recipient);
+                }
+            }
+            for (Recipient recipient : members) {
+                if (!recipient.enqueueClose(this, CLOSE_NOTICE)) {
+                    this.releaseCloseNotice(recipient);
+                }
+            }
+            this.closeNoticeDone();
+        }
+
+        // Called by a recipient before it sends the notice, false if the room already gave up on it
+        boolean claimCloseNotice(Recipient recipient) {
+            return this.closePending.remove(recipient);
+        }
+
+        // Called once for every member that got its notice or was given up on
+        void closeNoticeDone() {
+            if (this.closeNoticesLeft.decrementAndGet() == 0) {
+                this.finishClose();
+            }
+        }
+
+        // Members that left or were evicted while the room was closing do not get a notice
+        private void releaseCloseNotice(Recipient recipient) {
+            if (this.closing && this.claimCloseNotice(recipient)) {
+                this.closeNoticeDone();
+            }
+        }
+
+        // The deadline passed: whatever is still queued is dropped and the members still waiting get the notice now,
+        // all at once from the delivery pool
+        private void forceClose() {
+            if (this.closed.get()) {
+                return;
+            }
             this.shouldCloseRoom = true;
-            for (IUserChat user: this.userList.values()) {
-                try {
-                    user.deliverMsg(null, "Sala fechada pelo servidor.");
-                } catch (Exception e) {
-                    System.err.println("Error while sending close message to user: " + e.toString());
-                    e.printStackTrace();
+            this.queueCloseNotices();
+            int late = 0;
+            for (Recipient recipient : this.closePending) {
+                if (!this.claimCloseNotice(recipient)) {
+                    continue;
                 }
+                late++;
+                // Skips what is still queued for the room
+                recipient.leave(this);
+                final Recipient member = recipient;
+                this.deliveryPool.execute(new Runnable() {
+                    public void run() {
+                        member.deliverCloseNotice(roomName, CLOSE_NOTICE);
+                        closeNoticeDone();
+                    }
+                });
+            }
+            if (late > 0) {
+                Log.warn("Room \"" + this.roomName + "\" did not drain within " + CLOSE_DRAIN_MILLIS + " ms, "
+                    + late + " members lose their queued messages");
+            }
+        }
+
+        private void finishClose() {
+            if (!this.closed.compareAndSet(false, true)) {
+                return;
+            }
+            this.shouldCloseRoom = true;
+            ScheduledFuture<?> deadline = this.closeDeadline;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            int dropped = this.messageFifo.size();
+            this.messageFifo.clear();
+            this.droppedMessages.addAndGet(dropped);
+            this.metrics.droppedMessages.add(dropped);
+            this.flushJournal();
+            if (this.index != null) {
+                this.index.close();
+            }
+            synchronized (this.userList) {
+                this.userList.clear();
+                this.refreshMembers();
             }
+            System.out.println("Closed room: " + this.roomName + " in " + (System.nanoTime() - this.closeStart) / 1000000
+                + " ms" + (dropped > 0 ? ", " + dropped + " messages dropped" : ""));
+        }
+
+        boolean isClosed() {
+            return this.closed.get();
+        }
+
+        // Members still waiting for the close notice, all of them while the queue drains
+        int getCloseNoticesLeft() {
+            return this.closeNoticesQueued.get() ? Math.max(this.closeNoticesLeft.get() - 1, 0) : this.members.length;
         }
 
         @Override
         public String getRoomName() {
             return this.roomName;
         }
+
+        void setRouter(IRoomRouter router, long roomId, String pushAddress) {
+            this.roomId = roomId;
+            this.pushAddress = pushAddress;
+            this.router = router;
+        }
+
+        long getRoomId() {
+            return this.roomId;
+        }
+
+        // What clients are given for this room, null until it is registered
+        IRoomChat getHandle() {
+            RoomHandle handle = this.handle;
+            IRoomRouter router = this.router;
+            if (handle == null && router != null) {
+                // Two callers may both make one, they are equal
+                handle = new RoomHandle(router, this.roomId, this.roomName, this.pushAddress);
+                this.handle = handle;
+            }
+            return handle;
+        }
+
+        @Override
+        public ArrayList<String> getMembers() {
+            // A client in several rooms shares its recipient between them, the name is the one it joined this room with
+            return new ArrayList<String>(this.userList.keySet());
+        }
+
+        @Override
+        public ArrayList<ChatMessage> getHistory(long sinceSeq, int maxMessages) {
+            int max = Math.min(Math.max(maxMessages, 0), MAX_HISTORY_PAGE);
+            ArrayList<ChatMessage> page = this.history.getSince(sinceSeq, max);
+            MessageJournal journal = this.journal;
+            if (journal == null || page.isEmpty() || page.get(0).seq <= sinceSeq + 1) {
+                return page;
+            }
+            // A client resuming after a long disconnect asks for messages the ring no longer has, the journal still
+            // has them. Everything before the oldest message of the ring was journaled before it was added.
+            final ArrayList<ChatMessage> older = new ArrayList<ChatMessage>();
+            try {
+                journal.replay(sinceSeq + 1, Math.min(page.get(0).seq - 1, sinceSeq + max), new MessageJournal.Visitor() {
+                    public void visit(ChatMessage message) {
+                        older.add(message);
+                    }
+                });
+            } catch (IOException e) {
+                Log.warn("Error while reading the journal of room \"" + this.roomName + "\": " + e.toString());
+                return page;
+            }
+            for (int i = 0; i < page.size() && older.size() < max; i++) {
+                older.add(page.get(i));
+            }
+            return older;
+        }
+
+        @Override
+        public long renewLease(IUserChat user) {
+            return Recipient.renewLease(user, this);
+        }
+
+        @Override
+        public ArrayList<ChatMessage> search(String terms, String senderName, long fromTime, long toTime, int maxResults) {
+            if (this.index == null) {
+                return new ArrayList<ChatMessage>();
+            }
+            long start = System.nanoTime();
+            ArrayList<ChatMessage> results = this.index.search(terms, senderName, fromTime, toTime,
+                Math.min(maxResults, MessageIndex.MAX_RESULTS));
+            if (Log.isEnabled(Log.DEBUG)) {
+                Log.debug("Searched room \"" + this.roomName + "\" for \"" + terms + "\" in "
+                    + (System.nanoTime() - start) / 1000 + " us, " + results.size() + " results");
+            }
+            return results;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless IUserChat used by LoadGenerator. It sends messages carrying its own counter and the send time and
+// checks what it receives: latency from the embedded time (all users share the JVM, so System.nanoTime is
+// comparable), a counter at or below the last one seen from that sender in that room is an ordering violation and
+// a jump past the next one is a gap (a dropped or lost message). A user in several rooms joins all of them with
+// the same callback and sends to them in turn, every room with its own counter.
+//
+// Message text: "#<sender index> <counter> <nanoTime> <padding>"
+public class SimulatedUser implements IUserChat {
+    private int index;
+    private String usrName;
+    private IRoomChat[] rooms;
+    private IUserChat stub;
+    private NioPushConnections pushConnections;
+    private Stats stats;
+    private long[] sent;
+    private int nextRoom = 0;
+    private String padding;
+    // Only touched by delivery calls, which a Recipient never runs concurrently for the same client. Keyed by room
+    // name, "" for deliveries that do not say which room they are from.
+    private HashMap<String, HashMap<Integer, Long>> lastSeen = new HashMap<String, HashMap<Integer, Long>>();
+    private HashMap<Integer, String> senderNames = new HashMap<Integer, String>();
+    private HashMap<Long, HashMap<Integer, String>> roomSenderNames = new HashMap<Long, HashMap<Integer, String>>();
+
+    SimulatedUser(int index, IRoomChat[] rooms, int messageSize, Stats stats) {
+        this.index = index;
+        this.usrName = "load-" + index;
+        this.rooms = rooms;
+        this.sent = new long[rooms.length];
+        this.stats = stats;
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < messageSize; i++) {
+            padding.append((char) ('a' + i % 26));
+        }
+        this.padding = padding.toString();
+    }
+
+    public String getUsrName() {
+        return this.usrName;
+    }
+
+    void setStub(IUserChat stub, NioPushConnections pushConnections) {
+        this.stub = stub;
+        this.pushConnections = pushConnections;
+    }
+
+    NioPushConnections getPushConnections() {
+        return this.pushConnections;
+    }
+
+    void join() throws RemoteException {
+        for (IRoomChat room : this.rooms) {
+            if (this.pushConnections != null) {
+                this.pushConnections.connectTo(room);
+            }
+            room.joinRoom(this.usrName, this.stub);
+        }
+    }
+
+    void leave() throws RemoteException {
+        for (IRoomChat room : this.rooms) {
+            room.leaveRoom(this.usrName);
+        }
+    }
+
+    // Keeps the user in its rooms, like UserChat does
+    void renewLeases() {
+        try {
+            for (IRoomChat room : this.rooms) {
+                room.renewLease(this.stub);
+            }
+        } catch (RemoteException e) {
+            System.err.println("Error while renewing the leases of user \"" + this.usrName + "\": " + e.toString());
+        }
+    }
+
+    // Called by one sender thread at a time
+    void send() {
+        int room = this.nextRoom;
+        this.nextRoom = (room + 1) % this.rooms.length;
+        long counter = ++this.sent[room];
+        try {
+            this.rooms[room].sendMsg(this.usrName, "#" + this.index + " " + counter + " " + System.nanoTime() + " " + this.padding);
+            this.stats.sent.increment();
+        } catch (RemoteException e) {
+            // The counter is not reused, so receivers will see a gap for it. Rate limits are counted apart so a run
+            // can tell throttling from errors
+            if (RateLimitedException.of(e) != null) {
+                this.stats.rateLimited.increment();
+            } else {
+                this.stats.sendFailures.increment();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void deliverMsg(String senderName, String msg) throws RemoteException {
+        this.stats.deliveries.increment();
+        this.receive("", senderName, msg, System.nanoTime());
+    }
+
+    @Override
+    public synchronized void deliverBatch(MessageBatch batch) throws RemoteException {
+        this.stats.deliveries.increment();
+        long now = System.nanoTime();
+        for (ChatMessage message : batch.resolve(this.senderNames)) {
+            this.receive("", message.senderName, message.msg, now);
+        }
+    }
+
+    @Override
+    public synchronized void deliverRoomBatch(RoomBatch batch) throws RemoteException {
+        this.stats.deliveries.increment();
+        long now = System.nanoTime();
+        HashMap<Integer, String> senderNames = this.roomSenderNames.get(batch.getSource());
+        if (senderNames == null) {
+            senderNames = new HashMap<Integer, String>();
+            this.roomSenderNames.put(batch.getSource(), senderNames);
+        }
+        for (ChatMessage message : batch.resolve(senderNames)) {
+            this.receive(message.roomName, message.senderName, message.msg, now);
+        }
+    }
+
+    @Override
+    public void deliverPresence(PresenceDelta delta) throws RemoteException {
+        this.stats.presenceDeltas.increment();
+    }
+
+    @Override
+    public void deliverRooms(RoomDirectoryDelta delta) throws RemoteException {
+    }
+
+    private void receive(String roomName, String senderName, String msg, long now) {
+        // Join, leave and close notices are not ours
+        if (msg == null || !msg.startsWith("#")) {
+            return;
+        }
+        int first = msg.indexOf(' ');
+        int second = msg.indexOf(' ', first + 1);
+        int third = msg.indexOf(' ', second + 1);
+        if (first < 0 || second < 0 || third < 0) {
+            return;
+        }
+        int sender = Integer.parseInt(msg.substring(1, first));
+        long counter = Long.parseLong(msg.substring(first + 1, second));
+        long sentAt = Long.parseLong(msg.substring(second + 1, third));
+
+        this.stats.received.increment();
+        // Sender ids are recycled once the server handed out chat.senders.maxIds of them
+        if (!("load-" + sender).equals(senderName)) {
+            this.stats.wrongSenders.increment();
+        }
+        this.stats.latency.record(now - sentAt);
+        this.stats.intervalLatency.record(now - sentAt);
+        HashMap<Integer, Long> lastSeen = this.lastSeen.get(roomName);
+        if (lastSeen == null) {
+            lastSeen = new HashMap<Integer, Long>();
+            this.lastSeen.put(roomName, lastSeen);
+        }
+        Long last = lastSeen.get(sender);
+        long expected = last == null ? 1 : last + 1;
+        if (counter < expected) {
+            this.stats.orderViolations.increment();
+            return;
+        }
+        if (counter > expected) {
+            this.stats.gaps.add(counter - expected);
+        }
+        lastSeen.put(sender, counter);
+    }
+
+    // Shared by every simulated user of a run
+    static class Stats {
+        final LongAdder sent = new LongAdder();
+        final LongAdder sendFailures = new LongAdder();
+        final LongAdder rateLimited = new LongAdder();
+        final LongAdder received = new LongAdder();
+        // Calls the server made to deliver them, several rooms of a user can share one
+        final LongAdder deliveries = new LongAdder();
+        final LongAdder orderViolations = new LongAdder();
+        // Messages resolved to another sender than the one that sent them
+        final LongAdder wrongSenders = new LongAdder();
+        final LongAdder gaps = new LongAdder();
+        final LongAdder presenceDeltas = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+        // Reset by every progress report
+        final LatencyHistogram intervalLatency = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket holding up to burst tokens and refilling ratePerSecond of them, kept as the single time at which
+// the bucket would be full again (the GCRA formulation), so taking a token is one compare-and-set and no lock.
+public class TokenBucket {
+    private long intervalNanos;
+    private long toleranceNanos;
+    private AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.intervalNanos = (long) (1000000000L / ratePerSecond);
+        this.toleranceNanos = this.intervalNanos * Math.max(burst, 1);
+    }
+
+    // Takes a token and returns 0, or returns how many nanoseconds to wait until one is available
+    public long tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long fullAt = this.fullAt.get();
+            long next = Math.max(fullAt, now) + this.intervalNanos;
+            if (next - now > this.toleranceNanos) {
+                return next - now - this.toleranceNanos;
+            }
+            if (this.fullAt.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+}
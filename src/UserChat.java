@@ -1,15 +1,36 @@
 import java.awt.BorderLayout;
 import java.awt.Component;
 import java.awt.Dimension;
+import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.EOFException;
+import java.net.SocketException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.AbstractButton;
 import javax.swing.BorderFactory;
@@ -19,44 +40,92 @@ import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 public class UserChat implements IUserChat {
+    // Size of the history pages requested when joining a room
+    private static final int HISTORY_PAGE = 256;
+    // Size of the getRooms pages requested when loading the room list
+    private static final int ROOM_PAGE = 500;
+    // How many matches a search of the current room shows
+    private static final int SEARCH_RESULTS = 200;
+    private static final String CLOSE_NOTICE = "Sala fechada pelo servidor.";
+    // Lease renewals are sent three times per lease, this one until a room told us its length
+    private static final long DEFAULT_LEASE_MILLIS = 30000;
+    // Reconnect attempt n waits a random time up to min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << n), so the
+    // clients of a restarted server do not all come back at once
+    private static final long RECONNECT_BASE_MILLIS = Long.getLong("chat.reconnect.baseMillis", 500);
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("chat.reconnect.maxMillis", 30000);
+
     private String serverAddress;
     private String usrName;
     private IUserChat userStub;
     private IServerChat serverStub;
-    private IRoomChat roomStub;
+    // With the NIO transport messages are pushed on pushConnections instead of calling our exported object
+    private boolean useNio;
+    private NioPushConnections pushConnections;
+    // Sender names learned from the batches the server delivered, those of room batches by the process that sent
+    // them (guarded by roomSenderNames)
+    private HashMap<Integer, String> senderNames = new HashMap<Integer, String>();
+    private HashMap<Long, HashMap<Integer, String>> roomSenderNames = new HashMap<Long, HashMap<Integer, String>>();
+    // Rooms we are in, all joined with the same callback, guarded by itself
+    private TreeMap<String, JoinedRoom> joinedRooms = new TreeMap<String, JoinedRoom>();
+    // Room of the selected tab, where typed messages go
+    private volatile JoinedRoom selectedRoom;
+    // Buttons of the room list in name order, kept up to date by the room directory deltas. Only touched on the
+    // Swing thread, its lock guards roomsVersion and queuedRoomDeltas.
+    private TreeMap<String, JButton> roomButtons = new TreeMap<String, JButton>();
+    private long roomsVersion = -1;
+    // Deltas that arrive while the room list is being loaded, applied once it is (null when not loading)
+    private ArrayList<RoomDirectoryDelta> queuedRoomDeltas;
+    // Renews the leases of the joined rooms and runs the reconnects
+    private ScheduledExecutorService leaseTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "lease-renewal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile long leaseMillis = DEFAULT_LEASE_MILLIS;
+    // Set while a reconnect is running, lease renewals wait for it
+    private AtomicBoolean reconnecting = new AtomicBoolean(false);
+    private Random random = new Random();
     
     private JButton createButton = new JButton("Create room");
     private JButton leaveButton = new JButton("Leave room");
+    private JButton searchButton = new JButton("Search room");
     private JButton refreshButton = new JButton("Refresh");
-    private JPanel generalPane = new JPanel(new BorderLayout());
+    private JPanel generalPane = new JPanel(new GridLayout(0, 1));
     private JPanel roomsList = new JPanel();
     private JScrollPane roomsPane = new JScrollPane(roomsList);
     private JPanel leftPane = new JPanel(new BorderLayout());
-    private JTextArea messageArea = new JTextArea(16, 48);
+    private JTabbedPane roomTabs = new JTabbedPane();
     private JTextField textField = new JTextField(48);
     private JPanel rightPane = new JPanel(new BorderLayout());
     private JFrame frame = new JFrame("Chatter");
 
-    public UserChat(String serverAddress) {
+    public UserChat(String serverAddress, boolean useNio) {
         this.serverAddress = serverAddress;
+        this.useNio = useNio;
 
         leaveButton.setEnabled(false);
-        messageArea.setEditable(false);
+        searchButton.setEnabled(false);
         textField.setEditable(false);
-        rightPane.setEnabled(false);
         generalPane.setBorder(BorderFactory.createTitledBorder("General"));
-        generalPane.add(createButton, BorderLayout.PAGE_START);
-        generalPane.add(leaveButton, BorderLayout.CENTER);
-        generalPane.add(refreshButton, BorderLayout.PAGE_END);
+        generalPane.add(createButton);
+        generalPane.add(leaveButton);
+        generalPane.add(searchButton);
+        generalPane.add(refreshButton);
         roomsPane.setBorder(BorderFactory.createTitledBorder("Rooms"));
         leftPane.add(generalPane, BorderLayout.PAGE_START);
         leftPane.add(roomsPane, BorderLayout.CENTER);
-        rightPane.setBorder(BorderFactory.createTitledBorder("Room"));
-        rightPane.add(new JScrollPane(messageArea), BorderLayout.CENTER);
+        rightPane.setBorder(BorderFactory.createTitledBorder("Joined rooms"));
+        rightPane.add(roomTabs, BorderLayout.CENTER);
         rightPane.add(textField, BorderLayout.PAGE_END);
         frame.getContentPane().add(leftPane, BorderLayout.LINE_START);
         frame.getContentPane().add(rightPane, BorderLayout.CENTER);
@@ -68,10 +137,12 @@ public class UserChat implements IUserChat {
     private void addListeners() {
         frame.addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent ev) {
-                if (roomStub != null) {
-                    leaveRoom();
+                leaseTimer.shutdownNow();
+                for (JoinedRoom room : getJoinedRooms()) {
+                    leaveRoom(room);
                 }
                 if (userStub != null) {
+                    unsubscribeRooms();
                     disconnect();
                 }
                 frame.setVisible(false);
@@ -89,45 +160,83 @@ public class UserChat implements IUserChat {
                 if (roomName == null || roomName.isEmpty()) {
                     return;
                 }
+                // The room shows up with the next room directory delta
                 createRoom(roomName);
-                updateRooms(getRooms());
             }
         });
 
         leaveButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                leaveRoom();
+                leaveRoom(selectedRoom);
+            }
+        });
+
+        searchButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JoinedRoom room = selectedRoom;
+                if (room == null) {
+                    return;
+                }
+                String query = JOptionPane.showInputDialog(
+                    frame,
+                    "Words to look for (from:name to only show the messages of a user):",
+                    "Search " + room.name,
+                    JOptionPane.PLAIN_MESSAGE);
+                if (query == null || query.trim().isEmpty()) {
+                    return;
+                }
+                searchRoom(room.name, query.trim());
             }
         });
 
         refreshButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                updateRooms(getRooms());
+                loadRooms();
             }
         });
 
         textField.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                sendMsg(textField.getText());
+                sendMsg(selectedRoom, textField.getText());
                 textField.setText("");
             }
         });
+
+        roomTabs.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                selectedRoom = getJoinedRoom(roomTabs.getSelectedComponent());
+                updateButtons();
+            }
+        });
     }
 
     private void connect() {
         try {
-            userStub = (IUserChat) UnicastRemoteObject.exportObject(this, 0);
+            if (useNio) {
+                long token = new SecureRandom().nextLong();
+                pushConnections = NioPushConnections.connect(serverAddress, Integer.getInteger("chat.nio.port", 2021), token, this);
+                userStub = pushConnections.getUserRef();
+            } else {
+                userStub = (IUserChat) UnicastRemoteObject.exportObject(this, 0);
+            }
             Registry registry = LocateRegistry.getRegistry(serverAddress, 2020);
             serverStub = (IServerChat) registry.lookup("Servidor");
         } catch (Exception e) {
             System.err.println("Client exception: " + e.toString());
             e.printStackTrace();
         }
+        // Clients started together spread their renewals over the whole period
+        scheduleRenewal(1 + (long) (random.nextDouble() * (leaseMillis / 3)));
     }
 
     private void disconnect() {
         try {
-            UnicastRemoteObject.unexportObject(this, false);
+            if (pushConnections != null) {
+                pushConnections.close();
+                pushConnections = null;
+            } else {
+                UnicastRemoteObject.unexportObject(this, false);
+            }
             userStub = null;
         } catch (Exception e) {
             System.err.println("Client exception: " + e.toString());
@@ -135,13 +244,254 @@ public class UserChat implements IUserChat {
         } 
     }
 
-    private ArrayList<String> getRooms() {
-        try { 
-            return serverStub.getRooms();
+    private void scheduleRenewal(long delayMillis) {
+        leaseTimer.schedule(new Runnable() {
+            public void run() {
+                renewLeases();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // The rooms drop clients that stop renewing, so a crashed client does not cost them deliveries for long. A room
+    // that dropped us anyway is joined again, a lost connection starts a reconnect.
+    private void renewLeases() {
+        try {
+            if (reconnecting.get()) {
+                return;
+            }
+            if (pushConnections != null && !pushConnections.isConnected()) {
+                connectionLost();
+                return;
+            }
+            for (JoinedRoom room : getJoinedRooms()) {
+                if (room.closed || room.joining) {
+                    continue;
+                }
+                try {
+                    long lease = room.stub.renewLease(userStub);
+                    if (lease > 0) {
+                        leaseMillis = lease;
+                    } else {
+                        resume(room);
+                    }
+                } catch (RemoteException e) {
+                    if (isConnectionLost(e)) {
+                        connectionLost();
+                        return;
+                    }
+                    if (e instanceof ServerException && e.getCause() instanceof NoSuchObjectException) {
+                        // Closed while we were not looking
+                        synchronized (room.view) {
+                            roomClosed(room);
+                        }
+                    } else {
+                        System.err.println("Client exception: " + e.toString());
+                    }
+                }
+            }
+        } finally {
+            if (!leaseTimer.isShutdown()) {
+                scheduleRenewal(leaseMillis / 3);
+            }
+        }
+    }
+
+    // The process behind the stub is gone or was restarted, as opposed to it refusing the call
+    private static boolean isConnectionLost(RemoteException e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof NoSuchObjectException
+            || (e instanceof UnmarshalException
+                && (e.getCause() instanceof EOFException || e.getCause() instanceof SocketException));
+    }
+
+    private void connectionLost() {
+        if (!reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        appendToAll("Connection lost, reconnecting...");
+        frame.setTitle("Chatter - " + usrName + " (reconnecting)");
+        leaseTimer.execute(new Runnable() {
+            public void run() {
+                try {
+                    reconnect();
+                } finally {
+                    reconnecting.set(false);
+                }
+            }
+        });
+    }
+
+    // Looks the server up again and resumes every room we were in. Even the first attempt waits, with full jitter,
+    // so a server restart does not get all of its clients back in the same instant.
+    private void reconnect() {
+        for (int attempt = 0; !leaseTimer.isShutdown(); attempt++) {
+            long bound = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 16));
+            try {
+                Thread.sleep((long) (random.nextDouble() * bound));
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (useNio) {
+                    // A new session, the server forgets the old one once its lease expires
+                    long token = new SecureRandom().nextLong();
+                    NioPushConnections previous = pushConnections;
+                    pushConnections = NioPushConnections.connect(serverAddress, Integer.getInteger("chat.nio.port", 2021), token, this);
+                    userStub = pushConnections.getUserRef();
+                    if (previous != null) {
+                        previous.close();
+                    }
+                }
+                Registry registry = LocateRegistry.getRegistry(serverAddress, 2020);
+                serverStub = (IServerChat) registry.lookup("Servidor");
+                for (JoinedRoom room : getJoinedRooms()) {
+                    // Rooms still joining are caught up by their own task, queued behind this one
+                    if (!room.closed && !room.joining) {
+                        resume(room);
+                    }
+                }
+                loadRooms();
+                appendToAll("Reconnected");
+                frame.setTitle("Chatter - " + usrName);
+                return;
+            } catch (Exception e) {
+                System.err.println("Reconnect attempt " + (attempt + 1) + " failed: " + e.toString());
+            }
+        }
+    }
+
+    // Joins the room again and shows what was said since the last message we got, whether the room is still where
+    // it was or was restarted from its journal somewhere else. The remote calls are made without the view lock,
+    // deliveries meanwhile are held back and shown after the history, skipping what it already had.
+    private void resume(JoinedRoom room) throws RemoteException {
+        IRoomChat roomStub = serverStub.getRoom(room.name);
+        long lastSeq;
+        long lastTimestamp;
+        synchronized (room.view) {
+            if (roomStub == null) {
+                roomClosed(room);
+                return;
+            }
+            room.held = new ArrayList<ChatMessage>();
+            lastSeq = room.lastSeq;
+            lastTimestamp = room.lastTimestamp;
+        }
+        boolean restarted = false;
+        ArrayList<ChatMessage> history = new ArrayList<ChatMessage>();
+        ArrayList<String> members;
+        try {
+            if (pushConnections != null) {
+                pushConnections.connectTo(roomStub);
+            }
+            roomStub.joinRoom(usrName, userStub);
+            if (lastSeq > 0) {
+                // The room still has our last message unless it was restarted without its journal
+                ArrayList<ChatMessage> probe = roomStub.getHistory(lastSeq - 1, 1);
+                restarted = probe.isEmpty() || (probe.get(0).seq == lastSeq && probe.get(0).timestamp != lastTimestamp);
+            }
+            long pageAfter = restarted ? 0 : lastSeq;
+            while (true) {
+                ArrayList<ChatMessage> page = roomStub.getHistory(pageAfter, HISTORY_PAGE);
+                history.addAll(page);
+                if (page.size() < HISTORY_PAGE) {
+                    break;
+                }
+                pageAfter = page.get(page.size() - 1).seq;
+            }
+            members = roomStub.getMembers();
+        } catch (RemoteException e) {
+            synchronized (room.view) {
+                // Shows what arrived meanwhile, the next renewal tries again
+                showHeld(room);
+            }
+            throw e;
+        }
+
+        synchronized (room.view) {
+            if (restarted) {
+                room.view.append("The room was restarted, showing its history again");
+                room.lastSeq = 0;
+            }
+            for (ChatMessage message : history) {
+                if (room.lastSeq > 0 && message.seq > room.lastSeq + 1) {
+                    room.view.append((message.seq - room.lastSeq - 1) + " messages missed, no longer kept by the server");
+                }
+                room.view.append(message.senderName + ": " + message.msg);
+                room.lastSeq = message.seq;
+                room.lastTimestamp = message.timestamp;
+            }
+            showHeld(room);
+            room.stub = roomStub;
+            room.members.clear();
+            room.members.addAll(members);
+            showMembers(room);
+        }
+    }
+
+    // Must be called holding the view lock
+    private void showHeld(JoinedRoom room) {
+        ArrayList<ChatMessage> held = room.held;
+        room.held = null;
+        for (ChatMessage message : held) {
+            if (message.seq > room.lastSeq) {
+                room.view.append(message.senderName + ": " + message.msg);
+                room.lastSeq = message.seq;
+                room.lastTimestamp = message.timestamp;
+            }
+        }
+    }
+
+    private void appendToAll(String line) {
+        for (JoinedRoom room : getJoinedRooms()) {
+            synchronized (room.view) {
+                room.view.append(line);
+            }
+        }
+    }
+
+    // Subscribes to the room directory and then pages through the rooms, so no room created or closed meanwhile
+    // is missed: its delta is queued and applied on top of the loaded list
+    private void loadRooms() {
+        synchronized (roomButtons) {
+            queuedRoomDeltas = new ArrayList<RoomDirectoryDelta>();
+        }
+        ArrayList<String> rooms = new ArrayList<String>();
+        long version = -1;
+        try {
+            version = serverStub.subscribeRooms(userStub);
+            String afterRoom = null;
+            while (true) {
+                ArrayList<String> page = serverStub.getRooms("", afterRoom, ROOM_PAGE);
+                rooms.addAll(page);
+                if (page.size() < ROOM_PAGE) {
+                    break;
+                }
+                afterRoom = page.get(page.size() - 1);
+            }
+        } catch (Exception exception) {
+            System.err.println("Client exception: " + exception.toString());
+            exception.printStackTrace();
+        }
+        boolean reload = false;
+        synchronized (roomButtons) {
+            roomsVersion = version;
+            updateRooms(rooms);
+            ArrayList<RoomDirectoryDelta> queued = queuedRoomDeltas;
+            queuedRoomDeltas = null;
+            for (RoomDirectoryDelta delta : queued) {
+                reload |= !applyRoomDelta(delta);
+            }
+        }
+        if (reload) {
+            loadRooms();
+        }
+    }
+
+    private void unsubscribeRooms() {
+        try {
+            serverStub.unsubscribeRooms(userStub);
         } catch (Exception exception) {
             System.err.println("Client exception: " + exception.toString());
             exception.printStackTrace();
-            return new ArrayList<>();
         }
     }
 
@@ -157,20 +507,10 @@ public class UserChat implements IUserChat {
         frame.setTitle("Chatter - " + usrName);
     }
 
+    // The directory knows which process hosts the room, the stub it returns points straight at it
     private IRoomChat getRoomStub(String room) {
         try {
-            Registry registry = LocateRegistry.getRegistry(serverAddress, 2020);
-            return (IRoomChat) registry.lookup(room);
-        } catch (Exception exception) {
-            System.err.println("Client exception: " + exception.toString());
-            exception.printStackTrace();
-            return null;
-        }
-    }
-
-    private String getRoomName() {
-        try {
-            return roomStub.getRoomName();
+            return serverStub.getRoom(room);
         } catch (Exception exception) {
             System.err.println("Client exception: " + exception.toString());
             exception.printStackTrace();
@@ -187,113 +527,449 @@ public class UserChat implements IUserChat {
         }
     }
 
-    private void joinRoom() {
-        synchronized (messageArea) {
-            try {
-                roomStub.joinRoom(usrName, userStub);
-                updateRoom(roomStub.getRoomName());
-            } catch (Exception e) {
-                System.err.println("Client exception: " + e.toString());
-                e.printStackTrace();
+    // Adds a tab for the room and joins it on the lease timer, the rooms we were already in stay joined. Called on
+    // the Swing thread.
+    private void joinRoom(String roomName, IRoomChat roomStub) {
+        final JoinedRoom room = new JoinedRoom(roomName, roomStub);
+        // Deliveries for the room wait until we caught up with it
+        room.held = new ArrayList<ChatMessage>();
+        synchronized (joinedRooms) {
+            if (joinedRooms.containsKey(roomName)) {
+                // Clicked again while the first click was looking the room up
+                return;
             }
+            joinedRooms.put(roomName, room);
         }
+        roomTabs.addTab(roomName, room.view.getComponent());
+        roomTabs.setSelectedComponent(room.view.getComponent());
+        leaseTimer.execute(new Runnable() {
+            public void run() {
+                catchUp(room);
+            }
+        });
     }
 
-    private void leaveRoom() {
-        synchronized (messageArea) {
+    // Joins the room and shows what was said in it before, then what was delivered meanwhile. The remote calls are
+    // made without the view lock, so a long history does not hold up the deliveries of the room.
+    private void catchUp(JoinedRoom room) {
+        ArrayList<String> lines = new ArrayList<String>();
+        ArrayList<String> members;
+        long lastSeq = 0;
+        long lastTimestamp = 0;
+        try {
+            if (pushConnections != null) {
+                pushConnections.connectTo(room.stub);
+            }
+            room.stub.joinRoom(usrName, userStub);
+            while (true) {
+                ArrayList<ChatMessage> page = room.stub.getHistory(lastSeq, HISTORY_PAGE);
+                for (ChatMessage message : page) {
+                    lines.add(message.senderName + ": " + message.msg);
+                    lastSeq = message.seq;
+                    lastTimestamp = message.timestamp;
+                }
+                if (page.size() < HISTORY_PAGE) {
+                    break;
+                }
+            }
+            members = room.stub.getMembers();
+        } catch (Exception e) {
+            System.err.println("Client exception: " + e.toString());
+            e.printStackTrace();
+            // The lease renewal finds the room did not take us and joins it again
+            synchronized (room.view) {
+                showHeld(room);
+            }
+            room.joining = false;
+            return;
+        }
+
+        synchronized (room.view) {
+            room.view.prepend(lines);
+            room.lastSeq = lastSeq;
+            room.lastTimestamp = lastTimestamp;
+            showHeld(room);
+            room.members.addAll(members);
+            showMembers(room);
+        }
+        room.joining = false;
+    }
+
+    // Searches the whole history of the current room the server kept, not only what this window received
+    private void searchRoom(String roomName, String query) {
+        StringBuilder terms = new StringBuilder();
+        String senderName = null;
+        for (String word : query.split("\\s+")) {
+            if (word.startsWith("from:") && word.length() > 5) {
+                senderName = word.substring(5);
+            } else {
+                terms.append(word).append(' ');
+            }
+        }
+        ArrayList<ChatMessage> results;
+        try {
+            results = serverStub.searchMessages(roomName, terms.toString(), senderName, 0, Long.MAX_VALUE, SEARCH_RESULTS);
+        } catch (Exception exception) {
+            System.err.println("Client exception: " + exception.toString());
+            exception.printStackTrace();
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        StringBuilder lines = new StringBuilder();
+        // Newest first from the server, shown in the order they were said
+        for (int i = results.size() - 1; i >= 0; i--) {
+            ChatMessage message = results.get(i);
+            lines.append(format.format(new Date(message.timestamp))).append(' ')
+                .append(message.senderName).append(": ").append(message.msg).append('\n');
+        }
+        JTextArea area = new JTextArea(results.isEmpty() ? "No messages found" : lines.toString(), 20, 60);
+        area.setEditable(false);
+        JOptionPane.showMessageDialog(frame, new JScrollPane(area),
+            results.size() + " messages found in " + roomName, JOptionPane.PLAIN_MESSAGE);
+    }
+
+    private void leaveRoom(JoinedRoom room) {
+        if (room == null) {
+            return;
+        }
+        synchronized (joinedRooms) {
+            joinedRooms.remove(room.name);
+        }
+        synchronized (room.view) {
             try {
-                roomStub.leaveRoom(usrName);
-                roomStub = null;
-                updateRoom(null);
+                // A closed room already let everybody go
+                if (!room.closed) {
+                    room.stub.leaveRoom(usrName);
+                }
             } catch (Exception e) {
                 System.err.println("Client exception: " + e.toString());
                 e.printStackTrace();
             }
         }
+        roomTabs.remove(room.view.getComponent());
+        room.view.dispose();
     }
 
-    private void sendMsg(String msg) {
+    private void sendMsg(JoinedRoom room, String msg) {
+        if (room == null || room.closed) {
+            return;
+        }
         try { 
-            roomStub.sendMsg(usrName, msg);
+            room.stub.sendMsg(usrName, msg);
+        } catch (RemoteException exception) {
+            if (isConnectionLost(exception)) {
+                synchronized (room.view) {
+                    room.view.append("Connection lost, message not sent");
+                }
+                connectionLost();
+                return;
+            }
+            RateLimitedException limited = RateLimitedException.of(exception);
+            if (limited == null) {
+                System.err.println("Client exception: " + exception.toString());
+                exception.printStackTrace();
+                return;
+            }
+            synchronized (room.view) {
+                room.view.append("Sending too fast, message not sent (retry in " + limited.getRetryAfterMillis() + " ms)");
+            }
         } catch (Exception exception) {
             System.err.println("Client exception: " + exception.toString());
             exception.printStackTrace();
         }
     }
     
+    // Only clients that predate deliverRoomBatch get lines without a room, they go to the selected one
     public void deliverMsg(String senderName, String msg) throws RemoteException {
-        if (senderName == null && msg.equals("Sala fechada pelo servidor.")) {
-            ArrayList<String> rooms = getRooms();
-            rooms.remove(getRoomName());
-            updateRooms(rooms);
-            
-            roomStub = null;
-            updateRoom(null);
+        JoinedRoom room = selectedRoom;
+        if (room == null) {
             return;
         }
-        synchronized (messageArea) {
-            messageArea.append(senderName + ": " + msg + "\n");
+        synchronized (room.view) {
+            if (senderName == null && msg.equals(CLOSE_NOTICE)) {
+                roomClosed(room);
+            } else {
+                room.view.append(senderName + ": " + msg);
+            }
+        }
+    }
+
+    public void deliverBatch(MessageBatch batch) throws RemoteException {
+        JoinedRoom room = selectedRoom;
+        if (room == null) {
+            return;
+        }
+        synchronized (room.view) {
+            for (ChatMessage message : batch.resolve(senderNames)) {
+                room.view.append(message.senderName + ": " + message.msg);
+            }
+        }
+    }
+
+    public void deliverRoomBatch(RoomBatch batch) throws RemoteException {
+        HashMap<Integer, String> names;
+        synchronized (roomSenderNames) {
+            names = roomSenderNames.get(batch.getSource());
+            if (names == null) {
+                names = new HashMap<Integer, String>();
+                roomSenderNames.put(batch.getSource(), names);
+            }
+        }
+        JoinedRoom room = null;
+        for (ChatMessage message : batch.resolve(names)) {
+            if (room == null || !room.name.equals(message.roomName)) {
+                room = getJoinedRoom(message.roomName);
+                if (room == null) {
+                    // Left meanwhile
+                    continue;
+                }
+            }
+            synchronized (room.view) {
+                if (message.senderName == null && message.msg.equals(CLOSE_NOTICE)) {
+                    roomClosed(room);
+                } else if (room.held != null) {
+                    room.held.add(message);
+                } else if (message.seq > room.lastSeq) {
+                    // Older ones were already shown by catching up or resuming
+                    room.view.append(message.senderName + ": " + message.msg);
+                    room.lastSeq = message.seq;
+                    room.lastTimestamp = message.timestamp;
+                }
+            }
+        }
+    }
+
+    public void deliverPresence(PresenceDelta delta) throws RemoteException {
+        JoinedRoom room = getJoinedRoom(delta.getRoomName());
+        if (room == null) {
+            return;
+        }
+        synchronized (room.view) {
+            for (Map.Entry<String, Byte> change : delta.getChanges().entrySet()) {
+                if (change.getValue() == PresenceDelta.JOINED) {
+                    room.members.add(change.getKey());
+                    room.view.append(change.getKey() + ": Has joined the room");
+                } else {
+                    room.members.remove(change.getKey());
+                    room.view.append(change.getKey() + ": Has left the room");
+                }
+            }
+            showMembers(room);
+        }
+    }
+
+    private JoinedRoom getJoinedRoom(String roomName) {
+        synchronized (joinedRooms) {
+            return joinedRooms.get(roomName);
+        }
+    }
+
+    private ArrayList<JoinedRoom> getJoinedRooms() {
+        synchronized (joinedRooms) {
+            return new ArrayList<JoinedRoom>(joinedRooms.values());
         }
     }
 
+    private JoinedRoom getJoinedRoom(Component tab) {
+        synchronized (joinedRooms) {
+            for (JoinedRoom room : joinedRooms.values()) {
+                if (room.view.getComponent() == tab) {
+                    return room;
+                }
+            }
+            return null;
+        }
+    }
+
+    // The tab stays with what was said until the user leaves it
+    private void roomClosed(JoinedRoom room) {
+        if (!room.closed) {
+            room.closed = true;
+            room.view.append(CLOSE_NOTICE);
+        }
+        // The room directory delta will say the same, removing it now just saves the user a click on it
+        removeRoomButton(room.name);
+        showMembers(room);
+    }
+
+    private void showMembers(JoinedRoom room) {
+        final JoinedRoom shown = room;
+        final String title = room.closed ? room.name + " (closed)" : room.name + " (" + room.members.size() + ")";
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                int index = roomTabs.indexOfComponent(shown.view.getComponent());
+                if (index >= 0) {
+                    roomTabs.setTitleAt(index, title);
+                }
+                updateButtons();
+            }
+        });
+    }
+
+    public void deliverRooms(RoomDirectoryDelta delta) throws RemoteException {
+        boolean applied;
+        synchronized (roomButtons) {
+            if (queuedRoomDeltas != null) {
+                queuedRoomDeltas.add(delta);
+                return;
+            }
+            applied = applyRoomDelta(delta);
+        }
+        if (!applied) {
+            loadRooms();
+        }
+    }
+
+    // Returns false if a delta was missed and the room list has to be loaded again
+    private boolean applyRoomDelta(RoomDirectoryDelta delta) {
+        if (delta.getVersion() <= roomsVersion) {
+            // Sent to a previous subscription, already part of what we loaded
+            return true;
+        }
+        if (delta.getFromVersion() != roomsVersion) {
+            return false;
+        }
+        for (Map.Entry<String, Boolean> change : delta.getChanges().entrySet()) {
+            if (change.getValue()) {
+                addRoomButton(change.getKey());
+            } else {
+                removeRoomButton(change.getKey());
+                JoinedRoom room = getJoinedRoom(change.getKey());
+                if (room != null) {
+                    synchronized (room.view) {
+                        roomClosed(room);
+                    }
+                }
+            }
+        }
+        roomsVersion = delta.getVersion();
+        return true;
+    }
+
+    // Deltas arrive on RMI threads, the buttons change on the Swing thread in the order the changes were made
+    private void addRoomButton(final String room) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (roomButtons.containsKey(room)) {
+                    return;
+                }
+                JButton button = createRoomButton(room);
+                roomsList.add(button, roomButtons.headMap(room).size());
+                roomButtons.put(room, button);
+                frame.revalidate();
+                frame.repaint();
+            }
+        });
+    }
+
+    private void removeRoomButton(final String room) {
+        if (room == null) {
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                JButton button = roomButtons.remove(room);
+                if (button != null) {
+                    roomsList.remove(button);
+                    frame.revalidate();
+                    frame.repaint();
+                }
+            }
+        });
+    }
+
     private void updateRooms(ArrayList<String> rooms) {
-        roomsList.removeAll();
-        roomsList.setLayout(new BoxLayout(roomsList, BoxLayout.PAGE_AXIS));
-        
-        for (String room : rooms) {
-            JButton button = new JButton(room);
-            button.setMaximumSize(new Dimension(Short.MAX_VALUE, (int)button.getPreferredSize().getHeight()));
-            button.setAlignmentX(Component.CENTER_ALIGNMENT);
-            button.setHorizontalAlignment(AbstractButton.LEFT);
-            button.addActionListener(new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    if (roomStub != null) {
-                        if (room.equals(getRoomName())) {
+        final ArrayList<String> shown = new ArrayList<String>(rooms);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                roomsList.removeAll();
+                roomsList.setLayout(new BoxLayout(roomsList, BoxLayout.PAGE_AXIS));
+                roomButtons.clear();
+
+                for (String room : shown) {
+                    JButton button = createRoomButton(room);
+                    roomButtons.put(room, button);
+                    roomsList.add(button);
+                }
+
+                frame.revalidate();
+                frame.repaint();
+            }
+        });
+    }
+
+    private JButton createRoomButton(String room) {
+        JButton button = new JButton(room);
+        button.setMaximumSize(new Dimension(Short.MAX_VALUE, (int)button.getPreferredSize().getHeight()));
+        button.setAlignmentX(Component.CENTER_ALIGNMENT);
+        button.setHorizontalAlignment(AbstractButton.LEFT);
+        button.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JoinedRoom joined = getJoinedRoom(room);
+                if (joined != null) {
+                    roomTabs.setSelectedComponent(joined.view.getComponent());
+                    return;
+                }
+                // Looked up off the Swing thread, the tab is added back on it
+                leaseTimer.execute(new Runnable() {
+                    public void run() {
+                        final IRoomChat roomStub = getRoomStub(room);
+                        if (roomStub == null) {
+                            loadRooms();
                             return;
                         }
-                        leaveRoom();
-                    }
-                    roomStub = getRoomStub(room);
-                    if (roomStub != null) {
-                        joinRoom();
-                    } else {
-                        updateRooms(getRooms());
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                joinRoom(room, roomStub);
+                            }
+                        });
                     }
-                }
-            });
-            roomsList.add(button);
-        }
+                });
+            }
+        });
+        return button;
+    }
 
-        frame.revalidate();
-        frame.repaint();
+    private void updateButtons() {
+        JoinedRoom room = selectedRoom;
+        leaveButton.setEnabled(room != null);
+        searchButton.setEnabled(room != null);
+        textField.setEditable(room != null && !room.closed);
     }
 
-    private void updateRoom(String roomName) {
-        if (roomName != null) {
-            leaveButton.setEnabled(true);
-            textField.setEditable(true);
-            messageArea.setText("");
-            rightPane.setEnabled(true);
-            rightPane.setBorder(BorderFactory.createTitledBorder(roomName));
-        } else {
-            leaveButton.setEnabled(false);
-            textField.setEditable(false);
-            messageArea.setText("");
-            rightPane.setEnabled(false);
-            rightPane.setBorder(BorderFactory.createTitledBorder("Room"));
+    // A room we are in, with its own message pane
+    private static class JoinedRoom {
+        String name;
+        // Replaced when resuming, the room may be hosted by another process by then
+        volatile IRoomChat stub;
+        MessageView view = new MessageView();
+        // From getMembers when joining and kept up to date by the presence deltas, guarded by view
+        TreeSet<String> members = new TreeSet<String>();
+        // Seq and timestamp of the last message shown, guarded by view
+        long lastSeq = 0;
+        long lastTimestamp = 0;
+        // Deliveries that arrive while joining or resuming, shown once it caught up (null otherwise), guarded by view
+        ArrayList<ChatMessage> held;
+        // Until catchUp is done with its first join, renewing or resuming the room meanwhile would join it twice
+        volatile boolean joining = true;
+        volatile boolean closed = false;
+
+        JoinedRoom(String name, IRoomChat stub) {
+            this.name = name;
+            this.stub = stub;
         }
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.err.println("Pass the server IP as the sole command line argument");
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("rmi") && !args[1].equals("nio"))) {
+            System.err.println("Pass the server IP as the first command line argument, optionally followed by rmi or nio");
             return;
         }
-        UserChat user = new UserChat(args[0]);
+        UserChat user = new UserChat(args[0], args.length == 2 && args[1].equals("nio"));
         user.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         user.frame.setVisible(true);
         user.connect();
-        user.updateRooms(user.getRooms());
+        user.loadRooms();
         user.login();
     }
 }
\ No newline at end of file
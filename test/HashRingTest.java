@@ -0,0 +1,94 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class HashRingTest {
+    private static final int ROOMS = 20000;
+
+    @Test
+    public void emptyRingPlacesNothing() {
+        assertNull(new HashRing().getHost("room-1"));
+    }
+
+    @Test
+    public void placementDoesNotDependOnJoinOrder() {
+        String[] placed = place(ring("host-a", "host-b", "host-c", "host-d"));
+        String[] reversed = place(ring("host-d", "host-c", "host-b", "host-a"));
+        for (int i = 0; i < ROOMS; i++) {
+            assertEquals("room-" + i, placed[i], reversed[i]);
+        }
+        assertBalanced(placed, 4);
+    }
+
+    @Test
+    public void addedHostOnlyTakesRooms() {
+        HashRing ring = ring("host-a", "host-b", "host-c", "host-d");
+        String[] before = place(ring);
+        ring.add("host-e");
+        String[] after = place(ring);
+        int moved = 0;
+        for (int i = 0; i < ROOMS; i++) {
+            if (!after[i].equals(before[i])) {
+                assertEquals("room-" + i + " moved from " + before[i], "host-e", after[i]);
+                moved++;
+            }
+        }
+        assertShare(moved, 5, "moved to the new host");
+        assertBalanced(after, 5);
+    }
+
+    @Test
+    public void removedHostOnlyGivesUpItsRooms() {
+        HashRing ring = ring("host-a", "host-b", "host-c", "host-d");
+        String[] before = place(ring);
+        ring.remove("host-b");
+        String[] after = place(ring);
+        for (int i = 0; i < ROOMS; i++) {
+            if (before[i].equals("host-b")) {
+                assertNotEquals("room-" + i, "host-b", after[i]);
+            } else {
+                assertEquals("room-" + i, before[i], after[i]);
+            }
+        }
+        assertBalanced(after, 3);
+    }
+
+    private static HashRing ring(String... hosts) {
+        HashRing ring = new HashRing();
+        for (String host : hosts) {
+            ring.add(host);
+        }
+        return ring;
+    }
+
+    private static String[] place(HashRing ring) {
+        String[] hosts = new String[ROOMS];
+        for (int i = 0; i < ROOMS; i++) {
+            hosts[i] = ring.getHost("room-" + i);
+        }
+        return hosts;
+    }
+
+    private static void assertBalanced(String[] placement, int hosts) {
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for (String host : placement) {
+            Integer count = counts.get(host);
+            counts.put(host, count == null ? 1 : count + 1);
+        }
+        assertEquals(hosts, counts.size());
+        for (String host : counts.keySet()) {
+            assertShare(counts.get(host), hosts, "placed on " + host);
+        }
+    }
+
+    // With the default virtual nodes every host gets well between half and one and a half times its fair share
+    private static void assertShare(int count, int hosts, String what) {
+        double share = (double) count * hosts / ROOMS;
+        assertTrue(count + " of " + ROOMS + " rooms " + what + ", expected about 1/" + hosts, share > 0.5 && share < 1.5);
+    }
+}
@@ -0,0 +1,145 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Runs with the small segments set in chat/pom.xml, so a few thousand messages grow and roll them over
+public class MessageJournalTest {
+    private static final int HEADER_SIZE = 8;
+    private static final int MESSAGES = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+
+    @Before
+    public void appendMessages() throws IOException {
+        this.dir = this.folder.getRoot();
+        MessageJournal journal = MessageJournal.open(this.dir, "room", 0);
+        for (int i = 1; i <= MESSAGES; i++) {
+            journal.append(message(i, "first"));
+        }
+        journal.flush();
+        assertTrue("the journal did not roll over", new File(this.dir, "room").listFiles().length > 1);
+    }
+
+    @Test
+    public void recoversWhatWasAppended() throws IOException {
+        MessageJournal journal = MessageJournal.open(this.dir, "room", 100);
+        assertEquals(MESSAGES, journal.getLastSeq());
+        ArrayList<ChatMessage> recovered = journal.getRecovered();
+        assertEquals(100, recovered.size());
+        for (int i = 0; i < recovered.size(); i++) {
+            assertMessage(message(MESSAGES - 99 + i, "first"), recovered.get(i));
+        }
+        assertReplay(journal, 1, MESSAGES, "first");
+    }
+
+    @Test
+    public void dropsRecordFailingItsCrc() throws IOException {
+        File segment = this.newestSegment();
+        int last = lastRecord(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(last);
+            long position = last + HEADER_SIZE + file.readInt() - 1;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        }
+        MessageJournal journal = MessageJournal.open(this.dir, "room", 10);
+        assertEquals(MESSAGES - 1, journal.getLastSeq());
+
+        // The next append takes its place and nothing of the old record comes back
+        journal.append(message(MESSAGES, "second"));
+        journal.flush();
+        journal = MessageJournal.open(this.dir, "room", 10);
+        assertEquals(MESSAGES, journal.getLastSeq());
+        assertReplay(journal, MESSAGES - 10, MESSAGES - 1, "first");
+        assertReplay(journal, MESSAGES, MESSAGES, "second");
+    }
+
+    @Test
+    public void dropsTornRecord() throws IOException {
+        // Only the length of the next record made it to disk
+        File segment = this.newestSegment();
+        int last = lastRecord(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(last);
+            file.seek(last + HEADER_SIZE + file.readInt());
+            file.writeInt(64);
+        }
+        MessageJournal journal = MessageJournal.open(this.dir, "room", 10);
+        assertEquals(MESSAGES, journal.getLastSeq());
+
+        journal.append(message(MESSAGES + 1, "second"));
+        journal.flush();
+        journal = MessageJournal.open(this.dir, "room", 10);
+        assertEquals(MESSAGES + 1, journal.getLastSeq());
+        assertReplay(journal, MESSAGES - 10, MESSAGES, "first");
+        assertReplay(journal, MESSAGES + 1, MESSAGES + 1, "second");
+    }
+
+    // Every 1000th message has no sender, like the notices of the server
+    private static ChatMessage message(long seq, String text) {
+        ChatMessage message = new ChatMessage(seq % 1000 == 0 ? null : "sender" + (seq % 100), text + " " + seq);
+        message.seq = seq;
+        message.timestamp = 1000000L + seq;
+        return message;
+    }
+
+    private static void assertMessage(ChatMessage expected, ChatMessage actual) {
+        assertEquals(expected.seq, actual.seq);
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.senderName, actual.senderName);
+        assertEquals(expected.msg, actual.msg);
+    }
+
+    private static void assertReplay(MessageJournal journal, long fromSeq, long toSeq, final String text)
+            throws IOException {
+        final ArrayList<ChatMessage> replayed = new ArrayList<ChatMessage>();
+        journal.replay(fromSeq, toSeq, new MessageJournal.Visitor() {
+            public void visit(ChatMessage message) {
+                replayed.add(message);
+            }
+        });
+        assertEquals(toSeq - fromSeq + 1, replayed.size());
+        for (int i = 0; i < replayed.size(); i++) {
+            assertMessage(message(fromSeq + i, text), replayed.get(i));
+        }
+    }
+
+    private File newestSegment() {
+        File[] segments = new File(this.dir, "room").listFiles();
+        Arrays.sort(segments);
+        return segments[segments.length - 1];
+    }
+
+    // Offset of the last record of a segment, following the lengths up to the zero that ends it
+    private static int lastRecord(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            int position = 0;
+            int last = -1;
+            while (position + HEADER_SIZE <= file.length()) {
+                file.seek(position);
+                int length = file.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                last = position;
+                position += HEADER_SIZE + length;
+            }
+            assertTrue("no records in " + segment, last >= 0);
+            return last;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+    // 50 ms between tokens leaves room for the scheduler between the steps
+    private static final long INTERVAL_NANOS = 50000000L;
+
+    @Test
+    public void grantsBurstThenRefillsAtRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(20, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("token " + (i + 1) + " of the burst", 0, bucket.tryAcquire());
+        }
+        long wait = bucket.tryAcquire();
+        assertTrue("waited " + wait + " ns", wait > 0 && wait <= INTERVAL_NANOS);
+
+        // Waiting as long as told gives exactly one more token
+        Thread.sleep(wait / 1000000 + 10);
+        assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    @Test
+    public void idleBucketFillsUpToBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(20, 5);
+        Thread.sleep(10 * INTERVAL_NANOS / 1000000);
+        int granted = 0;
+        while (bucket.tryAcquire() == 0) {
+            granted++;
+        }
+        assertEquals(5, granted);
+    }
+
+    @Test
+    public void neverGrantsMoreThanBurstAndRate() throws InterruptedException {
+        assertRate(1000, 10, 1);
+        assertRate(1000, 100, 8);
+    }
+
+    // Counts what threads taking tokens in a loop for 200 ms get, which must stay within burst + rate * elapsed
+    private static void assertRate(double ratePerSecond, int burst, int threads) throws InterruptedException {
+        final TokenBucket bucket = new TokenBucket(ratePerSecond, burst);
+        final AtomicLong granted = new AtomicLong();
+        long start = System.nanoTime();
+        final long end = start + 200000000L;
+        Thread[] takers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            takers[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (System.nanoTime() < end) {
+                        if (bucket.tryAcquire() == 0) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            takers[i].start();
+        }
+        for (Thread taker : takers) {
+            taker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long most = burst + (long) Math.ceil(ratePerSecond * seconds) + 1;
+        assertTrue(threads + " threads got " + granted.get() + " tokens, at most " + most + " allowed",
+            granted.get() <= most);
+        assertTrue(threads + " threads got only " + granted.get() + " tokens", granted.get() > burst);
+    }
+}